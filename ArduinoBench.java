@@ -0,0 +1,441 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for the scanner, the parser run sequentially and on the common
+ * fork-join pool, loading a saved AstFile, code generation and one simulated
+ * call of loop(), interpreted and as bytecode, and four analysis passes run
+ * through Visitors and through NodeSwitches, each run separately over
+ * generated scripts of increasing size and nesting.
+ * Every benchmark is warmed up and then measured over several timed
+ * iterations; the report gives throughput and the bytes allocated per
+ * operation, read from the thread allocation counter the same way the JMH GC
+ * profiler does.
+ *
+ * With -retained it instead reports the heap kept per statement by the
+ * object tree and by the same program loaded into an AstArena.
+ *
+ * Usage: java ArduinoBench [-i iterations] [-t millisPerIteration] [-retained] [filter]
+ */
+public class ArduinoBench {
+
+	// One benchmarked operation; its result is consumed so it is not optimized away
+	interface Op {
+		Object run();
+	}
+
+	static class Case {
+		final String name;
+		final int statements;
+		final int depth;
+		final Op op;
+
+		Case(String name, int statements, int depth, Op op) {
+			this.name = name;
+			this.statements = statements;
+			this.depth = depth;
+			this.op = op;
+		}
+	}
+
+	static volatile int sink;
+
+	static final int[] SIZES = { 100, 1000, 10000 };
+	static final int[] DEPTHS = { 1, 4 };
+
+	public static void main(String[] args) {
+		int iterations = 5;
+		long millis = 500;
+		String filter = "";
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-i") && i + 1 < args.length) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-t") && i + 1 < args.length) {
+				millis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-retained")) {
+				for (int size : SIZES) {
+					System.out.println(retained(size * 10));
+				}
+				return;
+			} else {
+				filter = args[i];
+			}
+		}
+
+		System.out.println(String.format("%-10s %6s %5s %12s %14s %12s %10s",
+				"benchmark", "stmts", "depth", "ops/s", "stmts/s", "bytes/op",
+				"MB/s"));
+		for (Case c : cases()) {
+			if (c.name.contains(filter)) {
+				System.out.println(run(c, iterations, millis));
+			}
+		}
+	}
+
+	static final ParallelParser PARALLEL = new ParallelParser();
+
+	static List<Case> cases() {
+		List<Case> cases = new ArrayList<Case>();
+		final Arduino.ArduinoCompiler compiler = new Arduino.ArduinoCompiler();
+		for (int depth : DEPTHS) {
+			for (int size : SIZES) {
+				final String script = ScriptGenerator.generate(size, depth, 42);
+				final Arduino.Program program = Arduino.parse(script);
+				cases.add(new Case("lex", size, depth, new Op() {
+					public Object run() {
+						Lexer lexer = new Lexer(script);
+						int tokens = 0;
+						while (lexer.next() != Lexer.Kind.EOF) {
+							tokens++;
+						}
+						return tokens;
+					}
+				}));
+				cases.add(new Case("parse", size, depth, new Op() {
+					public Object run() {
+						return Arduino.parse(script);
+					}
+				}));
+				cases.add(new Case("parallel", size, depth, new Op() {
+					public Object run() {
+						return PARALLEL.parse(script);
+					}
+				}));
+				// hash the source and map its saved parse back in
+				final AstArena loaded = new AstArena();
+				final byte[] bytes = script
+						.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+				final java.nio.file.Path saved = save(bytes, program);
+				cases.add(new Case("load", size, depth, new Op() {
+					public Object run() {
+						try {
+							return AstFile.read(saved, AstFile.hash(bytes),
+									bytes.length, loaded);
+						} catch (java.io.IOException e) {
+							throw new java.io.UncheckedIOException(e);
+						}
+					}
+				}));
+				cases.add(new Case("emit", size, depth, new Op() {
+					public Object run() {
+						return compiler.compile(program);
+					}
+				}));
+				// the same sketch in the interpreter and as bytecode
+				final Simulator interpreted = new Simulator(program, 1024, false);
+				cases.add(new Case("interpret", size, depth, new Op() {
+					public Object run() {
+						interpreted.run(1);
+						return interpreted.clock();
+					}
+				}));
+				final Simulator compiled = new Simulator(program, 1024, true);
+				cases.add(new Case("bytecode", size, depth, new Op() {
+					public Object run() {
+						compiled.run(1);
+						return compiled.clock();
+					}
+				}));
+				// four passes over the same tree through each kind of dispatch
+				cases.add(new Case("visitor", size, depth, new Op() {
+					public Object run() {
+						int total = 0;
+						for (Walk pass : new Walk[] { new CountIds(), new SumNumbers(),
+								new CountHigh(), new CountAssigns() }) {
+							program.accept(pass);
+							total += pass.total;
+						}
+						return total;
+					}
+				}));
+				cases.add(new Case("switch", size, depth, new Op() {
+					public Object run() {
+						int total = 0;
+						for (Count pass : new Count[] { new SwitchIds(),
+								new SwitchNumbers(), new SwitchHigh(),
+								new SwitchAssigns() }) {
+							pass.apply(program);
+							total += pass.total;
+						}
+						return total;
+					}
+				}));
+				final AstArena arena = new AstArena();
+				cases.add(new Case("arena", size, depth, new Op() {
+					public Object run() {
+						arena.clear();
+						return arena.load(program);
+					}
+				}));
+			}
+		}
+		return cases;
+	}
+
+	// The program parsed from script as an AstFile in a temporary file, removed on exit
+	static java.nio.file.Path save(byte[] script, Arduino.Program program) {
+		try {
+			java.nio.file.Path file = java.nio.file.Files.createTempFile("bench",
+					".ast");
+			file.toFile().deleteOnExit();
+			AstArena arena = new AstArena();
+			int root = arena.load(program);
+			AstFile.write(file, AstFile.hash(script), script.length, arena,
+					root);
+			return file;
+		} catch (java.io.IOException e) {
+			throw new java.io.UncheckedIOException(e);
+		}
+	}
+
+	// A Visitor that walks the whole tree, totalling what subclasses count
+	static abstract class Walk implements Arduino.Visitor<Void> {
+		int total;
+
+		public Void visit(Arduino.Program program) {
+			return program.body.accept(this);
+		}
+
+		public Void visit(Arduino.Loop loop) {
+			return loop.body.accept(this);
+		}
+
+		public Void visit(Arduino.setUp setUp) {
+			return setUp.body.accept(this);
+		}
+
+		public Void visit(Arduino.forLoop forLoop) {
+			forLoop.id.accept(this);
+			forLoop.initValue.accept(this);
+			forLoop.maxValue.accept(this);
+			return forLoop.body.accept(this);
+		}
+
+		public Void visit(Arduino.Branch branch) {
+			return null;
+		}
+
+		public Void visit(Arduino.Assign assign) {
+			assign.variable.accept(this);
+			return assign.value.accept(this);
+		}
+
+		public Void visit(Arduino.remainder remainder) {
+			remainder.id.accept(this);
+			remainder.firstNumber.accept(this);
+			return remainder.secNumber.accept(this);
+		}
+
+		public Void visit(Arduino.pinMode pinMode) {
+			pinMode.predicate.accept(this);
+			return pinMode.value.accept(this);
+		}
+
+		public Void visit(Arduino.digitalWrite digitalWrite) {
+			digitalWrite.predicate.accept(this);
+			return digitalWrite.value.accept(this);
+		}
+
+		public Void visit(Arduino.analogWrite analogWrite) {
+			analogWrite.predicate.accept(this);
+			return analogWrite.value.accept(this);
+		}
+
+		public Void visit(Arduino.digitalRead digitalRead) {
+			return digitalRead.id.accept(this);
+		}
+
+		public Void visit(Arduino.analogRead analogRead) {
+			return analogRead.id.accept(this);
+		}
+
+		public Void visit(Arduino.Break break1) {
+			return break1.syntax.accept(this);
+		}
+
+		public Void visit(Arduino.Continue continue1) {
+			return continue1.variable.accept(this);
+		}
+
+		public Void visit(Arduino.Return return1) {
+			return return1.variable.accept(this);
+		}
+
+		public Void visit(Arduino.Goto goto1) {
+			return goto1.variable.accept(this);
+		}
+
+		public Void visit(Arduino.Operator op) {
+			op.left.accept(this);
+			return op.right.accept(this);
+		}
+
+		public Void visit(Arduino.Plus op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		public Void visit(Arduino.Minus op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		public Void visit(Arduino.Times op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		public Void visit(Arduino.Divide op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		public Void visit(Arduino.Id id) {
+			return null;
+		}
+
+		public Void visit(Arduino.Number num) {
+			return null;
+		}
+
+		public Void visit(Arduino.Type type) {
+			return null;
+		}
+
+		public Void visit(Arduino.HIGH high) {
+			return null;
+		}
+
+		public Void visit(Arduino.LOW low) {
+			return null;
+		}
+
+		public Void visit(Arduino.IOvalue iOvalue) {
+			return null;
+		}
+	}
+
+	static class CountIds extends Walk {
+		public Void visit(Arduino.Id id) {
+			total++;
+			return null;
+		}
+	}
+
+	static class SumNumbers extends Walk {
+		public Void visit(Arduino.Number num) {
+			total += num.n;
+			return null;
+		}
+	}
+
+	static class CountHigh extends Walk {
+		public Void visit(Arduino.HIGH high) {
+			total++;
+			return null;
+		}
+	}
+
+	static class CountAssigns extends Walk {
+		public Void visit(Arduino.Assign assign) {
+			total++;
+			return super.visit(assign);
+		}
+	}
+
+	// The same passes as NodeSwitches, totalling in a field as the Walks do
+	static abstract class Count extends NodeSwitch<Void> {
+		int total;
+	}
+
+	static class SwitchIds extends Count {
+		protected Void on(Arduino.Id id) {
+			total++;
+			return null;
+		}
+	}
+
+	static class SwitchNumbers extends Count {
+		protected Void on(Arduino.Number num) {
+			total += num.n;
+			return null;
+		}
+	}
+
+	static class SwitchHigh extends Count {
+		protected Void on(Arduino.HIGH high) {
+			total++;
+			return null;
+		}
+	}
+
+	static class SwitchAssigns extends Count {
+		protected Void on(Arduino.Assign assign) {
+			total++;
+			return super.on(assign);
+		}
+	}
+
+	// Heap kept per statement by the tree and by the arena for one script
+	static String retained(int size) {
+		String script = ScriptGenerator.generate(size, 4, 42);
+		long base = usedAfterGc();
+		Arduino.Program tree = Arduino.parse(script);
+		long treeBytes = usedAfterGc() - base;
+		AstArena arena = new AstArena();
+		arena.load(tree);
+		tree = null;
+		long arenaBytes = usedAfterGc() - base;
+		java.lang.ref.Reference.reachabilityFence(arena);
+		return String.format("%7d statements: tree %8.1f bytes/stmt, arena %6.1f bytes/stmt",
+				size, (double) treeBytes / size, (double) arenaBytes / size);
+	}
+
+	static long usedAfterGc() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// Warm up for one iteration, then report the mean over the measured ones
+	static String run(Case c, int iterations, long millis) {
+		iteration(c.op, millis);
+		long ops = 0;
+		long nanos = 0;
+		long bytes = 0;
+		for (int i = 0; i < iterations; i++) {
+			long[] r = iteration(c.op, millis);
+			ops += r[0];
+			nanos += r[1];
+			bytes += r[2];
+		}
+		double seconds = nanos / 1e9;
+		double opsPerSecond = ops / seconds;
+		return String.format("%-10s %6d %5d %12.1f %14.0f %12d %10.1f", c.name,
+				c.statements, c.depth, opsPerSecond, opsPerSecond * c.statements,
+				bytes / ops, bytes / seconds / (1024 * 1024));
+	}
+
+	// Run op repeatedly for about millis, returning ops, nanos and bytes allocated
+	static long[] iteration(Op op, long millis) {
+		long deadline = System.nanoTime() + millis * 1000000;
+		long allocated = allocatedBytes();
+		long begin = System.nanoTime();
+		long ops = 0;
+		long now;
+		do {
+			sink ^= op.run().hashCode();
+			ops++;
+		} while ((now = System.nanoTime()) < deadline);
+		return new long[] { ops, now - begin, allocatedBytes() - allocated };
+	}
+
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory
+				.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
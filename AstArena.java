@@ -0,0 +1,519 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact form of a parsed program. Every node is four ints in one array:
+ * its kind and up to three operands. Numbers and HIGH/LOW are stored inline,
+ * identifiers as indexes into a table of interned names, and the children of
+ * a sequence as a range of a shared child index array. The body of a Program,
+ * setUp, Loop or forLoop is always the node right after it. An Assign of a
+ * literal keeps the value inline; any other value is an expression node whose
+ * operands are the indexes of further expression nodes.
+ *
+ * view() hands out ordinary Node objects for a node so existing Visitors can
+ * walk the arena; sequences are viewed lazily, one child at a time, so only
+ * the part being visited is ever materialized. clear() keeps the arrays for
+ * the next program.
+ */
+public class AstArena {
+	public static final int PROGRAM = 0;
+	public static final int SEQUENCE = 1;
+	public static final int ASSIGN = 2;
+	public static final int DIGITAL_WRITE = 3;
+	public static final int ANALOG_WRITE = 4;
+	public static final int PIN_MODE = 5;
+	public static final int DIGITAL_READ = 6;
+	public static final int ANALOG_READ = 7;
+	public static final int FOR_LOOP = 8;
+	public static final int SET_UP = 9;
+	public static final int LOOP = 10;
+	public static final int BREAK = 11;
+	public static final int CONTINUE = 12;
+	public static final int RETURN = 13;
+	public static final int GOTO = 14;
+	public static final int REMAINDER = 15;
+	public static final int ASSIGN_EXPRESSION = 16;
+	public static final int NUMBER = 17;
+	public static final int NAME = 18;
+	public static final int PLUS = 19;
+	public static final int MINUS = 20;
+	public static final int TIMES = 21;
+	public static final int DIVIDE = 22;
+
+	private static final int STRIDE = 4;
+
+	private int[] nodes = new int[64 * STRIDE];
+	private int size;
+	private int[] children = new int[64];
+	private int childCount;
+	private String[] names = new String[16];
+	private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+	// children collected while their sequence is being loaded
+	private int[] pending = new int[16];
+	private int pendingCount;
+
+	// Load a program, returning the index of its root node
+	public int load(Arduino.Program program) {
+		return program.accept(new Loader());
+	}
+
+	public void clear() {
+		size = 0;
+		childCount = 0;
+		pendingCount = 0;
+		nameIds.clear();
+		Arrays.fill(names, null);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int kind(int node) {
+		return nodes[node * STRIDE];
+	}
+
+	public int operand(int node, int i) {
+		return nodes[node * STRIDE + 1 + i];
+	}
+
+	public String name(int id) {
+		return names[id];
+	}
+
+	public int nameCount() {
+		return nameIds.size();
+	}
+
+	// Body of a Program, setUp, Loop or forLoop
+	public int body(int node) {
+		return node + 1;
+	}
+
+	public int childCount(int sequence) {
+		return operand(sequence, 1);
+	}
+
+	public int child(int sequence, int i) {
+		return children[operand(sequence, 0) + i];
+	}
+
+	// Bytes held by the arena's arrays, leaving out the interned names
+	public long footprint() {
+		return 4L * (nodes.length + children.length + pending.length) + 8L
+				* names.length;
+	}
+
+	// Bytes taken by writeTo
+	int serializedSize() {
+		int bytes = 4 * (3 + size * STRIDE + childCount);
+		for (int i = 0; i < nameCount(); i++) {
+			bytes += 4 + 2 * names[i].length();
+		}
+		return bytes;
+	}
+
+	// Counts, then the node and child arrays, then each name as its length
+	// and chars
+	void writeTo(ByteBuffer out) {
+		out.putInt(size).putInt(childCount).putInt(nameCount());
+		out.asIntBuffer().put(nodes, 0, size * STRIDE);
+		out.position(out.position() + 4 * size * STRIDE);
+		out.asIntBuffer().put(children, 0, childCount);
+		out.position(out.position() + 4 * childCount);
+		for (int i = 0; i < nameCount(); i++) {
+			String name = names[i];
+			out.putInt(name.length());
+			for (int c = 0; c < name.length(); c++) {
+				out.putChar(name.charAt(c));
+			}
+		}
+	}
+
+	// Replace the arena's contents with what writeTo wrote
+	void readFrom(ByteBuffer in) {
+		clear();
+		size = in.getInt();
+		childCount = in.getInt();
+		int nameCount = in.getInt();
+		if (nodes.length < size * STRIDE) {
+			nodes = new int[size * STRIDE];
+		}
+		in.asIntBuffer().get(nodes, 0, size * STRIDE);
+		in.position(in.position() + 4 * size * STRIDE);
+		if (children.length < childCount) {
+			children = new int[childCount];
+		}
+		in.asIntBuffer().get(children, 0, childCount);
+		in.position(in.position() + 4 * childCount);
+		if (names.length < nameCount) {
+			names = new String[nameCount];
+		}
+		char[] chars = new char[16];
+		for (int i = 0; i < nameCount; i++) {
+			int length = in.getInt();
+			if (chars.length < length) {
+				chars = new char[length];
+			}
+			in.asCharBuffer().get(chars, 0, length);
+			in.position(in.position() + 2 * length);
+			names[i] = new String(chars, 0, length);
+			nameIds.put(names[i], i);
+		}
+	}
+
+	public <T> T accept(int node, Arduino.Visitor<T> v) {
+		return view(node).accept(v);
+	}
+
+	// An ordinary node for the arena node, for code written against Visitor
+	public Arduino.Node view(int node) {
+		switch (kind(node)) {
+		case PROGRAM:
+			return new Arduino.Program(new SequenceView(body(node)));
+		case SEQUENCE:
+			return new SequenceView(node);
+		case ASSIGN:
+			return new Arduino.Assign(id(node, 0), number(node, 1));
+		case DIGITAL_WRITE:
+			return new Arduino.digitalWrite(id(node, 0),
+					operand(node, 1) != 0 ? new Arduino.HIGH() : new Arduino.LOW());
+		case ANALOG_WRITE:
+			return new Arduino.analogWrite(id(node, 0), number(node, 1));
+		case PIN_MODE:
+			return new Arduino.pinMode(id(node, 0), new Arduino.IOvalue(
+					names[operand(node, 1)]));
+		case DIGITAL_READ:
+			return new Arduino.digitalRead(id(node, 0));
+		case ANALOG_READ:
+			return new Arduino.analogRead(id(node, 0));
+		case FOR_LOOP:
+			return new Arduino.forLoop(id(node, 0), number(node, 1), number(
+					node, 2), new SequenceView(body(node)));
+		case SET_UP:
+			return new Arduino.setUp(new SequenceView(body(node)));
+		case LOOP:
+			return new Arduino.Loop(new SequenceView(body(node)));
+		case BREAK:
+			return new Arduino.Break(id(node, 0));
+		case CONTINUE:
+			return new Arduino.Continue(id(node, 0));
+		case RETURN:
+			return new Arduino.Return(id(node, 0));
+		case GOTO:
+			return new Arduino.Goto(id(node, 0));
+		case REMAINDER:
+			return new Arduino.remainder(id(node, 0), number(node, 1), number(
+					node, 2));
+		case ASSIGN_EXPRESSION:
+			return new Arduino.Assign(id(node, 0), expression(operand(node, 1)));
+		case NUMBER:
+		case NAME:
+		case PLUS:
+		case MINUS:
+		case TIMES:
+		case DIVIDE:
+			return expression(node);
+		default:
+			throw new IllegalStateException("bad node kind " + kind(node));
+		}
+	}
+
+	private Arduino.Id id(int node, int i) {
+		// the arena numbers names in order of first use, as a table built
+		// over the program does, so the index is usually its symbol
+		int name = operand(node, i);
+		return new Arduino.Id(names[name], name);
+	}
+
+	private Arduino.Number number(int node, int i) {
+		return new Arduino.Number(operand(node, i));
+	}
+
+	private Arduino.Expression expression(int node) {
+		switch (kind(node)) {
+		case NUMBER:
+			return number(node, 0);
+		case NAME:
+			return id(node, 0);
+		case PLUS:
+			return new Arduino.Plus(expression(operand(node, 0)),
+					expression(operand(node, 1)));
+		case MINUS:
+			return new Arduino.Minus(expression(operand(node, 0)),
+					expression(operand(node, 1)));
+		case TIMES:
+			return new Arduino.Times(expression(operand(node, 0)),
+					expression(operand(node, 1)));
+		case DIVIDE:
+			return new Arduino.Divide(expression(operand(node, 0)),
+					expression(operand(node, 1)));
+		default:
+			throw new IllegalStateException("not an expression: " + kind(node));
+		}
+	}
+
+	// A sequence that views its children only while they are being visited
+	class SequenceView extends Arduino.Sequence {
+		private final int node;
+
+		SequenceView(int node) {
+			this.node = node;
+		}
+
+		@Override
+		public <T> T accept(Arduino.Visitor<T> v) {
+			int count = childCount(node);
+			for (int i = 0; i < count; i++) {
+				view(child(node, i)).accept(v);
+			}
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return childCount(node);
+		}
+
+		@Override
+		public Arduino.Node get(int i) {
+			return view(child(node, i));
+		}
+	}
+
+	private int add(int kind, int a, int b, int c) {
+		if ((size + 1) * STRIDE > nodes.length) {
+			nodes = Arrays.copyOf(nodes, nodes.length * 2);
+		}
+		int at = size * STRIDE;
+		nodes[at] = kind;
+		nodes[at + 1] = a;
+		nodes[at + 2] = b;
+		nodes[at + 3] = c;
+		return size++;
+	}
+
+	private int intern(String name) {
+		Integer id = nameIds.get(name);
+		if (id == null) {
+			id = nameIds.size();
+			if (id == names.length) {
+				names = Arrays.copyOf(names, id * 2);
+			}
+			names[id] = name;
+			nameIds.put(name, id);
+		}
+		return id;
+	}
+
+	private static int value(Arduino.Expression e) {
+		if (e instanceof Arduino.Number) {
+			return ((Arduino.Number) e).n;
+		}
+		throw new IllegalArgumentException("only literal operands fit the arena: "
+				+ e.getClass().getSimpleName());
+	}
+
+	/**
+	 * Copies a tree into the arena. Each visit adds its node and returns the
+	 * index; sequences gather their children on a stack and copy them into
+	 * the child array once complete, so nested sequences stay contiguous.
+	 */
+	class Loader implements Arduino.Visitor<Integer> {
+
+		private int sequence(Arduino.Sequence sequence) {
+			int node = add(SEQUENCE, 0, 0, 0);
+			int mark = pendingCount;
+			// by size and get, as a view holds no children list
+			for (int i = 0; i < sequence.size(); i++) {
+				int index = sequence.get(i).accept(this);
+				if (pendingCount == pending.length) {
+					pending = Arrays.copyOf(pending, pendingCount * 2);
+				}
+				pending[pendingCount++] = index;
+			}
+			int count = pendingCount - mark;
+			if (childCount + count > children.length) {
+				children = Arrays.copyOf(children,
+						Math.max(children.length * 2, childCount + count));
+			}
+			System.arraycopy(pending, mark, children, childCount, count);
+			nodes[node * STRIDE + 1] = childCount;
+			nodes[node * STRIDE + 2] = count;
+			childCount += count;
+			pendingCount = mark;
+			return node;
+		}
+
+		private int name(Arduino.Expression e) {
+			return intern(((Arduino.Id) e).id);
+		}
+
+		@Override
+		public Integer visit(Arduino.Program program) {
+			int node = add(PROGRAM, 0, 0, 0);
+			sequence((Arduino.Sequence) program.body);
+			return node;
+		}
+
+		@Override
+		public Integer visit(Arduino.Loop loop) {
+			int node = add(LOOP, 0, 0, 0);
+			sequence(loop.body);
+			return node;
+		}
+
+		@Override
+		public Integer visit(Arduino.setUp setUp) {
+			int node = add(SET_UP, 0, 0, 0);
+			sequence(setUp.body);
+			return node;
+		}
+
+		@Override
+		public Integer visit(Arduino.forLoop forLoop) {
+			int node = add(FOR_LOOP, name(forLoop.id), forLoop.initValue.n,
+					forLoop.maxValue.n);
+			sequence(forLoop.body);
+			return node;
+		}
+
+		@Override
+		public Integer visit(Arduino.Assign assign) {
+			if (assign.value instanceof Arduino.Number) {
+				return add(ASSIGN, name(assign.variable),
+						((Arduino.Number) assign.value).n, 0);
+			}
+			int node = add(ASSIGN_EXPRESSION, name(assign.variable), 0, 0);
+			nodes[node * STRIDE + 2] = assign.value.accept(this);
+			return node;
+		}
+
+		@Override
+		public Integer visit(Arduino.digitalWrite digitalWrite) {
+			return add(DIGITAL_WRITE, name(digitalWrite.predicate),
+					digitalWrite.value instanceof Arduino.HIGH ? 1 : 0, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.analogWrite analogWrite) {
+			return add(ANALOG_WRITE, name(analogWrite.predicate),
+					analogWrite.value.n, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.pinMode pinMode) {
+			return add(PIN_MODE, name(pinMode.predicate),
+					intern(pinMode.value.value), 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.digitalRead digitalRead) {
+			return add(DIGITAL_READ, name(digitalRead.id), 0, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.analogRead analogRead) {
+			return add(ANALOG_READ, name(analogRead.id), 0, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.Break break1) {
+			return add(BREAK, name(break1.syntax), 0, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.Continue continue1) {
+			return add(CONTINUE, name(continue1.variable), 0, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.Return return1) {
+			return add(RETURN, name(return1.variable), 0, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.Goto goto1) {
+			return add(GOTO, name(goto1.variable), 0, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.remainder remainder) {
+			return add(REMAINDER, name(remainder.id),
+					value(remainder.firstNumber), value(remainder.secNumber));
+		}
+
+		private Integer unsupported(Arduino.Node node) {
+			throw new IllegalArgumentException("no arena form for "
+					+ node.getClass().getSimpleName());
+		}
+
+		@Override
+		public Integer visit(Arduino.Branch branch) {
+			return unsupported(branch);
+		}
+
+		@Override
+		public Integer visit(Arduino.Id id) {
+			return add(NAME, intern(id.id), 0, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.Operator op) {
+			return unsupported(op);
+		}
+
+		private int binary(int kind, Arduino.Operator op) {
+			int left = op.left.accept(this);
+			int right = op.right.accept(this);
+			return add(kind, left, right, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.Plus op) {
+			return binary(PLUS, op);
+		}
+
+		@Override
+		public Integer visit(Arduino.Minus op) {
+			return binary(MINUS, op);
+		}
+
+		@Override
+		public Integer visit(Arduino.Times op) {
+			return binary(TIMES, op);
+		}
+
+		@Override
+		public Integer visit(Arduino.Divide op) {
+			return binary(DIVIDE, op);
+		}
+
+		@Override
+		public Integer visit(Arduino.Number num) {
+			return add(NUMBER, num.n, 0, 0);
+		}
+
+		@Override
+		public Integer visit(Arduino.Type type) {
+			return unsupported(type);
+		}
+
+		@Override
+		public Integer visit(Arduino.HIGH high) {
+			return unsupported(high);
+		}
+
+		@Override
+		public Integer visit(Arduino.LOW low) {
+			return unsupported(low);
+		}
+
+		@Override
+		public Integer visit(Arduino.IOvalue iOvalue) {
+			return unsupported(iOvalue);
+		}
+	}
+}
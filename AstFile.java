@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Parsed programs saved next to their source as a .ast file, so a script that
+ * has not changed is loaded instead of parsed again. The file holds an
+ * AstArena, little endian, behind a header of magic, format version, and the
+ * hash and length of the source bytes it was parsed from; it is mapped into
+ * memory and copied into the arena in bulk, without decoding or lexing the
+ * source.
+ *
+ * A file that is missing, from another version, or for different source is
+ * ignored, the source is parsed, and the file is written afresh. Files are
+ * written to a temporary name and moved into place, so jobs sharing a
+ * directory never see one half written.
+ */
+public class AstFile {
+	static final int MAGIC = 0x41535446; // "ASTF"
+	static final int VERSION = 1;
+	static final int HEADER = 4 + 4 + 8 + 4 + 4;
+
+	// Outcome of load
+	public static class Result {
+		public final Arduino.Program program;
+		// the program came from the .ast file, not from the parser
+		public final boolean cached;
+		public final String errorMessage;
+
+		Result(Arduino.Program program, boolean cached, String errorMessage) {
+			this.program = program;
+			this.cached = cached;
+			this.errorMessage = errorMessage;
+		}
+
+		public boolean failed() {
+			return errorMessage != null;
+		}
+	}
+
+	public static Path pathFor(Path source) {
+		return source.resolveSibling(source.getFileName() + ".ast");
+	}
+
+	// 64 bit hash of the bytes of the source, eight at a time in four
+	// interleaved lanes so the multiplies do not wait on one another
+	public static long hash(byte[] source) {
+		ByteBuffer in = ByteBuffer.wrap(source).order(ByteOrder.LITTLE_ENDIAN);
+		long a = 1, b = 2, c = 3, d = 4;
+		int i = 0;
+		for (; i + 32 <= source.length; i += 32) {
+			a = (a + in.getLong(i)) * 0x9E3779B97F4A7C15L;
+			b = (b + in.getLong(i + 8)) * 0x9E3779B97F4A7C15L;
+			c = (c + in.getLong(i + 16)) * 0x9E3779B97F4A7C15L;
+			d = (d + in.getLong(i + 24)) * 0x9E3779B97F4A7C15L;
+		}
+		for (; i < source.length; i++) {
+			a = (a + source[i]) * 0x9E3779B97F4A7C15L;
+		}
+		long h = a ^ Long.rotateLeft(b, 16) ^ Long.rotateLeft(c, 32)
+				^ Long.rotateLeft(d, 48);
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * The program in source, whose UTF-8 contents are bytes, read from the
+	 * .ast file beside it when that is current, otherwise decoded, parsed and
+	 * saved there. A parse with errors is not saved. The program of a cached
+	 * load is a view of arena.
+	 */
+	public static Result load(Path source, byte[] bytes, Parser parser,
+			AstArena arena) throws IOException {
+		Path file = pathFor(source);
+		long hash = hash(bytes);
+		int root = read(file, hash, bytes.length, arena);
+		if (root >= 0) {
+			return new Result((Arduino.Program) arena.view(root), true, null);
+		}
+		Parser.Context parse = parser.context(
+				new String(bytes, StandardCharsets.UTF_8)).named(
+				source.toString());
+		Arduino.Program program = parse.parseProgram();
+		if (parse.failed()) {
+			return new Result(program, false, parse.errorMessage());
+		}
+		arena.clear();
+		try {
+			root = arena.load(program);
+		} catch (IllegalArgumentException e) {
+			// the program has nodes the arena cannot hold
+			return new Result(program, false, null);
+		}
+		write(file, hash, bytes.length, arena, root);
+		return new Result(program, false, null);
+	}
+
+	public static void write(Path file, long hash, int length, AstArena arena,
+			int root) throws IOException {
+		ByteBuffer out = ByteBuffer.allocate(HEADER + arena.serializedSize())
+				.order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(MAGIC).putInt(VERSION).putLong(hash).putInt(length)
+				.putInt(root);
+		arena.writeTo(out);
+		out.flip();
+		Path temp = Files.createTempFile(file.toAbsolutePath().getParent(),
+				file.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp,
+					StandardOpenOption.WRITE)) {
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Read the file into arena, returning the index of its root, or -1 when
+	 * there is no file or it was not written for this source by this version.
+	 */
+	public static int read(Path file, long hash, int length, AstArena arena)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			if (channel.size() < HEADER) {
+				return -1;
+			}
+			ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			if (in.getInt() != MAGIC || in.getInt() != VERSION
+					|| in.getLong() != hash || in.getInt() != length) {
+				return -1;
+			}
+			int root = in.getInt();
+			arena.readFrom(in);
+			return root;
+		} catch (NoSuchFileException e) {
+			return -1;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException
+				| NegativeArraySizeException e) {
+			// truncated or corrupt, so as good as stale
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+
+/**
+ * Command line driver that compiles many scripts at once without the applet.
+ * Every file is parsed and compiled in its own fork-join task and written out
+ * as a .ino next to the source, or into the directory given with -o at the
+ * source's path relative to the working directory, so sources of the same
+ * name in different directories do not overwrite each other. With
+ * -cache each parse is saved as an AstFile beside its source and loaded from
+ * there while the source is unchanged. With -stream each file is compiled a
+ * statement at a time by a StreamingCompiler, for scripts too big to hold,
+ * reading it twice so its globals are declared as for a whole Program.
+ * With -board, naming a built in board or a BoardPins file, reads and writes
+ * of constant pins go straight to the board's port registers; that needs the
+ * whole program, so it cannot be combined with -stream.
+ *
+ * Usage: java BatchCompiler [-o outDir] [-j threads] [-ext .txt] [-cache]
+ * [-stream] [-board uno|mega|file] file|dir...
+ */
+public class BatchCompiler {
+	// All are safe to share between the worker threads
+	static final Parser PARSER = new Parser();
+	static final PeepholeOptimizer PEEPHOLE = new PeepholeOptimizer();
+	static final Arduino.ArduinoCompiler COMPILER = new Arduino.ArduinoCompiler(
+			new ConstantFolder(), new LoopOptimizer(), PEEPHOLE);
+	static final StreamingCompiler STREAMING = new StreamingCompiler(PARSER,
+			COMPILER);
+
+	// Outcome of compiling one file
+	static class Result {
+		final Path source;
+		final Path target;
+		final long nanos;
+		final String error;
+
+		Result(Path source, Path target, long nanos, String error) {
+			this.source = source;
+			this.target = target;
+			this.nanos = nanos;
+			this.error = error;
+		}
+	}
+
+	static class CompileTask extends RecursiveTask<Result> {
+		private final Path source;
+		private final Path outDir;
+		private final boolean cache;
+		private final boolean stream;
+		private final Arduino.ArduinoCompiler compiler;
+
+		CompileTask(Path source, Path outDir, boolean cache, boolean stream,
+				Arduino.ArduinoCompiler compiler) {
+			this.source = source;
+			this.outDir = outDir;
+			this.cache = cache;
+			this.stream = stream;
+			this.compiler = compiler;
+		}
+
+		@Override
+		protected Result compute() {
+			long begin = System.nanoTime();
+			Path target = targetFor(source, outDir);
+			String error = null;
+			try {
+				if (outDir != null) {
+					Files.createDirectories(target.getParent());
+				}
+				if (stream) {
+					StreamingCompiler.Result result;
+					try (Writer out = Files.newBufferedWriter(target)) {
+						result = STREAMING.compile(source, out);
+					}
+					if (result.failed()) {
+						Files.delete(target);
+						error = "parse error";
+					}
+					return new Result(source, target, System.nanoTime() - begin,
+							error);
+				}
+				byte[] bytes = Files.readAllBytes(source);
+				Arduino.Program program;
+				boolean failed;
+				if (cache) {
+					AstFile.Result load = AstFile.load(source, bytes, PARSER,
+							new AstArena());
+					program = load.program;
+					failed = load.failed();
+				} else {
+					Parser.Context parse = PARSER.context(
+							new String(bytes, StandardCharsets.UTF_8)).named(
+							source.toString());
+					program = parse.parseProgram();
+					failed = parse.failed();
+				}
+				if (failed) {
+					error = "parse error";
+				} else {
+					String code = compiler.compile(program, source.toString());
+					Files.write(target, code.getBytes(StandardCharsets.UTF_8));
+				}
+			} catch (IOException | RuntimeException e) {
+				error = e.toString();
+			}
+			return new Result(source, target, System.nanoTime() - begin, error);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path outDir = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String ext = ".txt";
+		boolean cache = false;
+		boolean stream = false;
+		BoardPins board = null;
+		List<Path> sources = new ArrayList<Path>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-o") && i + 1 < args.length) {
+				outDir = Paths.get(args[++i]);
+			} else if (args[i].equals("-j") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-ext") && i + 1 < args.length) {
+				ext = args[++i];
+			} else if (args[i].equals("-cache")) {
+				cache = true;
+			} else if (args[i].equals("-stream")) {
+				stream = true;
+			} else if (args[i].equals("-board") && i + 1 < args.length) {
+				board = BoardPins.forName(args[++i]);
+			} else {
+				collect(Paths.get(args[i]), ext, sources);
+			}
+		}
+		if (stream && board != null) {
+			System.err.println("-board needs the whole program and cannot be used with -stream");
+			System.exit(2);
+		}
+		if (sources.isEmpty()) {
+			System.err.println("Usage: java BatchCompiler [-o outDir] [-j threads] [-ext .txt] [-cache] [-stream] [-board uno|mega|file] file|dir...");
+			System.exit(2);
+		}
+		if (outDir != null) {
+			Files.createDirectories(outDir);
+		}
+
+		List<Result> results = compileAll(sources, outDir, threads, cache,
+				stream, board);
+		System.exit(printSummary(results) == 0 ? 0 : 1);
+	}
+
+	// Compile every source on a pool of the given size, in input order, for
+	// the board when there is one
+	static List<Result> compileAll(List<Path> sources, Path outDir,
+			int threads, boolean cache, boolean stream, BoardPins board) {
+		if (stream && board != null) {
+			throw new IllegalArgumentException(
+					"a board needs the whole program and cannot be streamed");
+		}
+		Arduino.ArduinoCompiler compiler = board == null ? COMPILER
+				: new Arduino.ArduinoCompiler(board, new ConstantFolder(),
+						new LoopOptimizer(), PEEPHOLE);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<CompileTask> tasks = new ArrayList<CompileTask>();
+			for (Path source : sources) {
+				CompileTask task = new CompileTask(source, outDir, cache,
+						stream, compiler);
+				pool.execute(task);
+				tasks.add(task);
+			}
+			List<Result> results = new ArrayList<Result>();
+			for (CompileTask task : tasks) {
+				results.add(task.join());
+			}
+			return results;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// Print per file timings and failures, returning the number of failures
+	static int printSummary(List<Result> results) {
+		long total = 0;
+		long slowest = 0;
+		int failures = 0;
+		for (Result r : results) {
+			total += r.nanos;
+			slowest = Math.max(slowest, r.nanos);
+			if (r.error != null) {
+				failures++;
+				System.out.println("FAIL " + r.source + " : " + r.error);
+			} else {
+				System.out.println("OK   " + r.source + " -> " + r.target + " ("
+						+ r.nanos / 1000 + " us)");
+			}
+		}
+		System.out.println(results.size() + " files, " + failures
+				+ " failed, total " + total / 1000000 + " ms, slowest "
+				+ slowest / 1000 + " us");
+		if (PEEPHOLE.removed() > 0) {
+			System.out.println("peephole " + PEEPHOLE.summary());
+		}
+		return failures;
+	}
+
+	// The .ino beside the source, or under outDir at the path of the source
+	// relative to the working directory, or to its root when outside it
+	static Path targetFor(Path source, Path outDir) {
+		String name = source.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String ino = (dot > 0 ? name.substring(0, dot) : name) + ".ino";
+		Path absolute = source.toAbsolutePath().normalize();
+		if (outDir == null) {
+			return absolute.getParent().resolve(ino);
+		}
+		Path working = Paths.get("").toAbsolutePath();
+		Path relative = absolute.startsWith(working) ? working
+				.relativize(absolute) : absolute.getRoot().relativize(absolute);
+		Path dir = relative.getParent();
+		return (dir == null ? outDir : outDir.resolve(dir)).resolve(ino);
+	}
+
+	private static void collect(Path path, String ext, List<Path> into)
+			throws IOException {
+		if (Files.isDirectory(path)) {
+			try (Stream<Path> files = Files.walk(path)) {
+				files.filter(p -> Files.isRegularFile(p)
+						&& p.getFileName().toString().endsWith(ext))
+						.sorted().forEach(into::add);
+			}
+		} else {
+			into.add(path);
+		}
+	}
+}
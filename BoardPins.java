@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where the pins of an AVR board are in its port registers, so PortGenerator
+ * can write PORTx and read PINx for a pin instead of calling digitalWrite and
+ * digitalRead. The Uno (and Nano) and Mega 2560 are built in; another board is
+ * read from a text file with a line per pin, its number and its port letter
+ * and bit ("13 B5"), and a line per name a pin goes by ("LED_BUILTIN 13").
+ * Blank lines and anything after a '#' are ignored.
+ */
+public class BoardPins {
+	public static final BoardPins UNO = builtIn("uno",
+			"D0 D1 D2 D3 D4 D5 D6 D7 B0 B1 B2 B3 B4 B5 C0 C1 C2 C3 C4 C5", 14);
+	public static final BoardPins MEGA = builtIn("mega",
+			"E0 E1 E4 E5 G5 E3 H3 H4 H5 H6 B4 B5 B6 B7 J1 J0 H1 H0 D3 D2 D1 D0 "
+					+ "A0 A1 A2 A3 A4 A5 A6 A7 C7 C6 C5 C4 C3 C2 C1 C0 D7 G2 G1 "
+					+ "G0 L7 L6 L5 L4 L3 L2 L1 L0 B3 B2 B1 B0 F0 F1 F2 F3 F4 F5 F6 "
+					+ "F7 K0 K1 K2 K3 K4 K5 K6 K7", 54);
+
+	private final String name;
+	// by pin number; a port of 0 is a pin the board does not have
+	private char[] ports = new char[0];
+	private byte[] bits = new byte[0];
+	private final Map<String, Integer> aliases = new HashMap<String, Integer>();
+
+	private BoardPins(String name) {
+		this.name = name;
+	}
+
+	// A board whose pins are in the ports listed in pin order, with analog
+	// pins A0 onwards from firstAnalog
+	private static BoardPins builtIn(String name, String ports,
+			int firstAnalog) {
+		BoardPins board = new BoardPins(name);
+		String[] pins = ports.split(" ");
+		for (int pin = 0; pin < pins.length; pin++) {
+			board.add(pin, pins[pin].charAt(0), pins[pin].charAt(1) - '0');
+		}
+		for (int pin = firstAnalog; pin < pins.length; pin++) {
+			board.aliases.put("A" + (pin - firstAnalog), pin);
+		}
+		board.aliases.put("LED_BUILTIN", 13);
+		return board;
+	}
+
+	// A built in board by name, or else the board in the file of that name
+	public static BoardPins forName(String board) throws IOException {
+		switch (board.toLowerCase()) {
+		case "uno":
+		case "nano":
+			return UNO;
+		case "mega":
+		case "mega2560":
+			return MEGA;
+		default:
+			return read(Paths.get(board));
+		}
+	}
+
+	public static BoardPins read(Path file) throws IOException {
+		return parse(file.getFileName().toString(),
+				new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+	}
+
+	static BoardPins parse(String name, String table) {
+		BoardPins board = new BoardPins(name);
+		String[] lines = table.split("\n");
+		for (int n = 0; n < lines.length; n++) {
+			String line = lines[n];
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			try {
+				if (fields.length != 2) {
+					throw new IllegalArgumentException();
+				}
+				if (Character.isDigit(fields[0].charAt(0))) {
+					String register = fields[1];
+					char port = Character.toUpperCase(register.charAt(0));
+					int bit = Integer.parseInt(register.substring(1));
+					// AVR ports run from A to L but skip I
+					if (port < 'A' || port > 'L' || port == 'I' || bit < 0
+							|| bit > 7) {
+						throw new IllegalArgumentException();
+					}
+					board.add(Integer.parseInt(fields[0]), port, bit);
+				} else {
+					board.aliases.put(fields[0], Integer.parseInt(fields[1]));
+				}
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException(name + ":" + (n + 1)
+						+ ": expected \"pin PORTbit\" or \"name pin\", got \""
+						+ lines[n].trim() + "\"");
+			}
+		}
+		return board;
+	}
+
+	private void add(int pin, char port, int bit) {
+		if (pin >= ports.length) {
+			ports = Arrays.copyOf(ports, Math.max(pin + 1, ports.length * 2));
+			bits = Arrays.copyOf(bits, ports.length);
+		}
+		ports[pin] = port;
+		bits[pin] = (byte) bit;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public boolean has(int pin) {
+		return pin >= 0 && pin < ports.length && ports[pin] != 0;
+	}
+
+	// Letter of the port the pin is in, as in PORTB
+	public char port(int pin) {
+		return ports[pin];
+	}
+
+	public int bit(int pin) {
+		return bits[pin];
+	}
+
+	// Pin a built in name such as A0 or LED_BUILTIN stands for, or -1
+	public int alias(String name) {
+		Integer pin = aliases.get(name);
+		return pin == null ? -1 : pin;
+	}
+}
@@ -0,0 +1,511 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates one function of a Simulator's instruction array into a hidden
+ * class implementing Simulator.Function, so the JIT compiles the sketch
+ * itself instead of the interpreter's dispatch loop. The instructions map
+ * almost one to one onto JVM bytecode: expressions use the operand stack,
+ * variables stay in the simulator's array, and pin writes call back into the
+ * simulator with the current clock.
+ *
+ * The cycle cost of straight line code is added to the clock in one go at
+ * the end of each basic block, before every pin write, and before the
+ * function returns.
+ *
+ * HotSpot does not JIT compile a method of more than 8000 bytes of bytecode,
+ * and takes long to compile large ones, so a long function is cut between
+ * top level statements into a chain of small methods, each ending by
+ * returning what the next one returns. A Return anywhere then ends the
+ * whole chain.
+ *
+ * The class file is written by hand at version 49, which the JVM verifies by
+ * type inference, so no stack map frames are needed. A function with a
+ * single statement too large for a method the JIT will compile, or with more
+ * constants than a class file can hold (variable indices above 32767 each
+ * need one), gives null and stays interpreted.
+ */
+public class BytecodeCompiler {
+	// HotSpot runs larger methods in its bytecode interpreter, which is slower
+	// than the simulator's own
+	private static final int MAX_CODE = 8000;
+	// bytecode after which a method is cut at the next top level statement
+	private static final int PART_SIZE = 500;
+	// a class file numbers its constants in 16 bits, from 1
+	private static final int MAX_CONSTANTS = 0xffff;
+	private static final String CLASS_NAME = "ArduinoSketch";
+
+	// Local variable slots of the generated call method
+	private static final int SIMULATOR = 1;
+	private static final int VARIABLES = 2;
+	private static final int CLOCK = 3;
+	private static final int TEMP = 5;
+
+	private static final String SIMULATOR_CLASS = "Simulator";
+	private static final String FUNCTION_CLASS = "Simulator$Function";
+	private static final String CALL_DESCRIPTOR = "(LSimulator;[IJ)J";
+
+	/**
+	 * The function in code[from, to), or null if one of its statements is
+	 * too large to compile or it needs too many constants. stackDepth is the most values its expressions ever push.
+	 */
+	public static Simulator.Function compile(int[] code, int from, int to,
+			int stackDepth) {
+		byte[] bytes = new BytecodeCompiler(code, from, to).classFile(stackDepth);
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			Class<?> type = MethodHandles.lookup().defineHiddenClass(bytes, true)
+					.lookupClass();
+			return (Simulator.Function) type.getDeclaredConstructor()
+					.newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("cannot load compiled sketch", e);
+		}
+	}
+
+	private final int[] code;
+	private final int from;
+	private final int to;
+	private final Pool pool = new Pool();
+	private byte[] out = new byte[256];
+	private int size;
+	// bytecode offset of each instruction, indexed by pc - from
+	private final int[] offsets;
+	// instructions something jumps to
+	private final boolean[] targets;
+	// pairs of branch opcode offset and the pc it jumps to, patched last
+	private final List<int[]> branches = new ArrayList<int[]>();
+	// cycles of the current block not yet added to the clock
+	private int pending;
+	// offset where the code of each method in the chain starts
+	private final List<Integer> parts = new ArrayList<Integer>();
+
+	private BytecodeCompiler(int[] code, int from, int to) {
+		this.code = code;
+		this.from = from;
+		this.to = to;
+		offsets = new int[to - from];
+		targets = new boolean[to - from];
+	}
+
+	private byte[] classFile(int stackDepth) {
+		findTargets();
+		int thisClass = pool.type(CLASS_NAME);
+		int superClass = pool.type("java/lang/Object");
+		int function = pool.type(FUNCTION_CLASS);
+		int init = pool.utf8("<init>");
+		int voidDescriptor = pool.utf8("()V");
+		int objectInit = pool.method("java/lang/Object", "<init>", "()V");
+		int callDescriptor = pool.utf8(CALL_DESCRIPTOR);
+		int codeAttribute = pool.utf8("Code");
+		if (!body()) {
+			return null;
+		}
+		int[] names = new int[parts.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = pool.utf8(part(i));
+		}
+		if (pool.count() > MAX_CONSTANTS) {
+			return null;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 512);
+		DataOutputStream data = new DataOutputStream(bytes);
+		try {
+			data.writeInt(0xCAFEBABE);
+			data.writeShort(0);
+			data.writeShort(49);
+			pool.write(data);
+			data.writeShort(0x0031); // public final super
+			data.writeShort(thisClass);
+			data.writeShort(superClass);
+			data.writeShort(1);
+			data.writeShort(function);
+			data.writeShort(0); // fields
+			data.writeShort(1 + parts.size()); // methods
+
+			data.writeShort(0x0001);
+			data.writeShort(init);
+			data.writeShort(voidDescriptor);
+			data.writeShort(1);
+			byte[] constructor = { 0x2a, (byte) 0xb7, (byte) (objectInit >> 8),
+					(byte) objectInit, (byte) 0xb1 }; // aload_0 invokespecial return
+			writeCode(data, codeAttribute, 1, 1, constructor, constructor.length);
+
+			for (int i = 0; i < names.length; i++) {
+				int start = parts.get(i);
+				int end = i + 1 < names.length ? parts.get(i + 1) : size;
+				data.writeShort(0x0011); // public final
+				data.writeShort(names[i]);
+				data.writeShort(callDescriptor);
+				data.writeShort(1);
+				writeCode(data, codeAttribute, stackDepth + 6, TEMP + 1,
+						Arrays.copyOfRange(out, start, end), end - start);
+			}
+
+			data.writeShort(0); // class attributes
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeCode(DataOutputStream data, int name,
+			int maxStack, int maxLocals, byte[] code, int length)
+			throws IOException {
+		data.writeShort(name);
+		data.writeInt(12 + length);
+		data.writeShort(maxStack);
+		data.writeShort(maxLocals);
+		data.writeInt(length);
+		data.write(code, 0, length);
+		data.writeShort(0); // exception table
+		data.writeShort(0); // attributes
+	}
+
+	private void findTargets() {
+		for (int pc = from; pc < to; pc += length(code[pc])) {
+			switch (code[pc]) {
+			case Simulator.FOR:
+				targets[code[pc + 4] - from] = true;
+				break;
+			case Simulator.NEXT:
+				targets[code[pc + 3] - from] = true;
+				break;
+			case Simulator.JUMP:
+				targets[code[pc + 1] - from] = true;
+				break;
+			}
+		}
+	}
+
+	private static int length(int instruction) {
+		switch (instruction) {
+		case Simulator.FOR:
+			return 5;
+		case Simulator.NEXT:
+			return 4;
+		case Simulator.SET:
+		case Simulator.MODE:
+		case Simulator.DIGITAL_WRITE:
+		case Simulator.ANALOG_WRITE:
+			return 3;
+		case Simulator.PUSH:
+		case Simulator.LOAD:
+		case Simulator.STORE:
+		case Simulator.DIGITAL_READ:
+		case Simulator.ANALOG_READ:
+		case Simulator.JUMP:
+			return 2;
+		default:
+			return 1;
+		}
+	}
+
+	// Bytecode for every instruction, false if it does not fit a method
+	private boolean body() {
+		int write = pool.method(SIMULATOR_CLASS, "write", "(IIJ)V");
+		int mode = pool.method(SIMULATOR_CLASS, "mode", "(IIJ)V");
+		int divide = pool.method(SIMULATOR_CLASS, "divide", "(II)I");
+		int remainder = pool.method(SIMULATOR_CLASS, "remainder", "(II)I");
+		// For loops and operand stack values open at the current instruction
+		int depth = 0;
+		int values = 0;
+		parts.add(0);
+		for (int pc = from; pc < to; pc += length(code[pc])) {
+			if (targets[pc - from]) {
+				flush();
+			} else if (depth == 0 && values == 0
+					&& size - parts.get(parts.size() - 1) > PART_SIZE) {
+				// nothing jumps across a top level statement boundary
+				flush();
+				int next = pool.method(CLASS_NAME, part(parts.size()),
+						CALL_DESCRIPTOR);
+				op(0x2a, 0x2a + SIMULATOR, 0x2a + VARIABLES, 0x1e + CLOCK);
+				op(0xb6, next >> 8, next); // invokevirtual
+				op(0xad);
+				parts.add(size);
+			}
+			offsets[pc - from] = size;
+			switch (code[pc]) {
+			case Simulator.END:
+				flush();
+				op(0x1e + CLOCK); // lload_3
+				op(0xad); // lreturn
+				break;
+			case Simulator.PUSH:
+				push(code[pc + 1]);
+				values++;
+				break;
+			case Simulator.LOAD:
+				values++;
+				op(0x2a + VARIABLES); // aload_2
+				push(code[pc + 1]);
+				op(0x2e); // iaload
+				break;
+			case Simulator.STORE:
+				values--;
+				op(0x36, TEMP); // istore
+				op(0x2a + VARIABLES);
+				push(code[pc + 1]);
+				op(0x15, TEMP); // iload
+				op(0x4f); // iastore
+				pending += Simulator.ARITHMETIC_CYCLES;
+				break;
+			case Simulator.SET:
+				op(0x2a + VARIABLES);
+				push(code[pc + 1]);
+				push(code[pc + 2]);
+				op(0x4f);
+				pending += Simulator.ARITHMETIC_CYCLES;
+				break;
+			case Simulator.ADD:
+				values--;
+				op(0x60); // iadd
+				op(0x93); // i2s
+				pending += Simulator.ARITHMETIC_CYCLES;
+				break;
+			case Simulator.SUB:
+				values--;
+				op(0x64); // isub
+				op(0x93);
+				pending += Simulator.ARITHMETIC_CYCLES;
+				break;
+			case Simulator.MUL:
+				values--;
+				op(0x68); // imul
+				op(0x93);
+				pending += Simulator.MULTIPLY_CYCLES;
+				break;
+			case Simulator.DIV:
+				values--;
+				invokestatic(divide);
+				pending += Simulator.DIVIDE_CYCLES;
+				break;
+			case Simulator.MOD:
+				values--;
+				invokestatic(remainder);
+				pending += Simulator.DIVIDE_CYCLES;
+				break;
+			case Simulator.MODE:
+				call(mode, code[pc + 1], code[pc + 2]);
+				pending += Simulator.PIN_MODE_CYCLES;
+				break;
+			case Simulator.DIGITAL_WRITE:
+				call(write, code[pc + 1], code[pc + 2]);
+				pending += Simulator.DIGITAL_WRITE_CYCLES;
+				break;
+			case Simulator.ANALOG_WRITE:
+				call(write, code[pc + 1], code[pc + 2]);
+				pending += Simulator.ANALOG_WRITE_CYCLES;
+				break;
+			case Simulator.DIGITAL_READ:
+				pending += Simulator.DIGITAL_READ_CYCLES;
+				break;
+			case Simulator.ANALOG_READ:
+				pending += Simulator.ANALOG_READ_CYCLES;
+				break;
+			case Simulator.FOR:
+				// the bounds are constants, so only an empty loop branches
+				op(0x2a + VARIABLES);
+				push(code[pc + 1]);
+				push(code[pc + 2]);
+				op(0x4f);
+				pending += Simulator.ARITHMETIC_CYCLES;
+				depth++;
+				if (code[pc + 2] >= code[pc + 3]) {
+					flush();
+					branch(0xa7, code[pc + 4]); // goto
+				}
+				break;
+			case Simulator.NEXT:
+				depth--;
+				pending += Simulator.ARITHMETIC_CYCLES;
+				flush();
+				op(0x2a + VARIABLES);
+				push(code[pc + 1]);
+				op(0x5c); // dup2
+				op(0x2e);
+				op(0x04); // iconst_1
+				op(0x60);
+				op(0x5b); // dup_x2
+				op(0x4f);
+				push(code[pc + 2]);
+				branch(0xa1, code[pc + 3]); // if_icmplt
+				break;
+			case Simulator.JUMP:
+				flush();
+				branch(0xa7, code[pc + 1]);
+				break;
+			default:
+				throw new IllegalStateException("bad instruction " + code[pc]
+						+ " at " + pc);
+			}
+			if (size - parts.get(parts.size() - 1) > MAX_CODE) {
+				return false;
+			}
+		}
+		for (int[] b : branches) {
+			int offset = offsets[b[1] - from] - b[0];
+			if (offset != (short) offset) {
+				return false;
+			}
+			out[b[0] + 1] = (byte) (offset >> 8);
+			out[b[0] + 2] = (byte) offset;
+		}
+		return true;
+	}
+
+	// Name of the i-th method of the chain
+	private static String part(int i) {
+		return i == 0 ? "call" : "call" + i;
+	}
+
+	// Add the cycles of the block so far to the clock
+	private void flush() {
+		if (pending > 0) {
+			op(0x1e + CLOCK); // lload_3
+			push(pending);
+			op(0x85); // i2l
+			op(0x61); // ladd
+			op(0x3f + CLOCK); // lstore_3
+			pending = 0;
+		}
+	}
+
+	// simulator.method(symbol, value, clock)
+	private void call(int method, int symbol, int value) {
+		flush();
+		op(0x2a + SIMULATOR); // aload_1
+		push(symbol);
+		push(value);
+		op(0x1e + CLOCK);
+		op(0xb6, method >> 8, method); // invokevirtual
+	}
+
+	private void invokestatic(int method) {
+		op(0xb8, method >> 8, method);
+	}
+
+	private void branch(int opcode, int target) {
+		branches.add(new int[] { size, target });
+		op(opcode, 0, 0);
+	}
+
+	private void push(int n) {
+		if (n >= -1 && n <= 5) {
+			op(0x03 + n); // iconst
+		} else if (n == (byte) n) {
+			op(0x10, n); // bipush
+		} else if (n == (short) n) {
+			op(0x11, n >> 8, n); // sipush
+		} else {
+			int index = pool.integer(n);
+			op(0x13, index >> 8, index); // ldc_w
+		}
+	}
+
+	private void op(int... bytes) {
+		if (size + bytes.length > out.length) {
+			out = Arrays.copyOf(out, out.length * 2);
+		}
+		for (int b : bytes) {
+			out[size++] = (byte) b;
+		}
+	}
+
+	// Constant pool entries, each added once
+	static class Pool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream data = new DataOutputStream(bytes);
+		private final Map<String, Integer> entries = new HashMap<String, Integer>();
+		private int count = 1;
+
+		int utf8(String s) {
+			Integer index = entries.get("U" + s);
+			if (index == null) {
+				index = add("U" + s);
+				try {
+					data.writeByte(1);
+					data.writeUTF(s);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return index;
+		}
+
+		int integer(int n) {
+			Integer index = entries.get("I" + n);
+			if (index == null) {
+				index = add("I" + n);
+				write(3, n >> 16, n);
+			}
+			return index;
+		}
+
+		int type(String name) {
+			int utf8 = utf8(name);
+			Integer index = entries.get("C" + name);
+			if (index == null) {
+				index = add("C" + name);
+				write(7, utf8);
+			}
+			return index;
+		}
+
+		int method(String owner, String name, String descriptor) {
+			String key = "M" + owner + "." + name + descriptor;
+			Integer index = entries.get(key);
+			if (index == null) {
+				int type = type(owner);
+				int nameIndex = utf8(name);
+				int descriptorIndex = utf8(descriptor);
+				int nameAndType = add("N" + name + descriptor);
+				write(12, nameIndex, descriptorIndex);
+				index = add(key);
+				write(10, type, nameAndType);
+			}
+			return index;
+		}
+
+		// One more than the number of entries, as the class file counts them
+		int count() {
+			return count;
+		}
+
+		private int add(String key) {
+			entries.put(key, count);
+			return count++;
+		}
+
+		// A tag followed by two 16 bit values
+		private void write(int tag, int a, int b) {
+			bytes.write(tag);
+			bytes.write(a >> 8);
+			bytes.write(a);
+			bytes.write(b >> 8);
+			bytes.write(b);
+		}
+
+		private void write(int tag, int a) {
+			bytes.write(tag);
+			bytes.write(a >> 8);
+			bytes.write(a);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeShort(count);
+			bytes.writeTo(out);
+		}
+	}
+}
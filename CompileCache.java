@@ -0,0 +1,304 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU caches of parsed statements and blocks, and of the code of
+ * whole programs, keyed by a hash of their normalized tokens. Keywords are case
+ * folded and whitespace is ignored, so reformatting a statement still hits. A
+ * recompile after a small edit only parses the statements and blocks whose
+ * tokens changed; code is generated for the whole program, as a variable is
+ * declared by the first statement that assigns it, and only when the program
+ * is not in the cache already. The code of a program can be as big as its
+ * source, so programs are kept apart from the parsed nodes and bounded by
+ * the total length of their code rather than by their number. Hits and
+ * misses are counted for each kind of lookup.
+ *
+ * The cache is safe to share between threads.
+ */
+public class CompileCache {
+
+	// Kinds of lookup, counted apart: a statement inside a block, a top level
+	// unit, and a whole program
+	public static final int STATEMENT = 0;
+	public static final int UNIT = 1;
+	public static final int PROGRAM = 2;
+	private static final String[] KINDS = { "statement", "unit", "program" };
+
+	// Characters of program code kept unless given otherwise
+	public static final int PROGRAM_CHARS = 1 << 20;
+
+	// Parsed node, null for a unit with nothing in it
+	public static class Entry {
+		final Arduino.Node node;
+
+		Entry(Arduino.Node node) {
+			this.node = node;
+		}
+	}
+
+	// Two independent 64 bit hashes of the normalized tokens
+	static final class Key {
+		final long h1;
+		final long h2;
+
+		Key(long h1, long h2) {
+			this.h1 = h1;
+			this.h2 = h2;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).h1 == h1 && ((Key) o).h2 == h2;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (h1 ^ (h1 >>> 32));
+		}
+	}
+
+	// Outcome of compiling a whole script through the cache
+	public static class Result {
+		public final Arduino.Program program;
+		public final String code;
+		public final String errorMessage;
+
+		Result(Arduino.Program program, String code, String errorMessage) {
+			this.program = program;
+			this.code = code;
+			this.errorMessage = errorMessage;
+		}
+
+		public boolean failed() {
+			return errorMessage != null;
+		}
+	}
+
+	private final Map<Key, Entry> entries;
+	// code of whole programs in access order, and its total length
+	private final LinkedHashMap<Key, String> programs = new LinkedHashMap<Key, String>(
+			16, 0.75f, true);
+	private final int programChars;
+	private long programWeight;
+	private final Parser parser;
+	private final Arduino.ArduinoCompiler compiler = new Arduino.ArduinoCompiler();
+	private final long[] hits = new long[KINDS.length];
+	private final long[] misses = new long[KINDS.length];
+
+	public CompileCache(int capacity) {
+		this(capacity, PROGRAM_CHARS);
+	}
+
+	// At most capacity parsed statements and units, and programs whose code
+	// is at most programChars long altogether
+	public CompileCache(final int capacity, int programChars) {
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+		this.programChars = programChars;
+		this.parser = new Parser(this);
+	}
+
+	/**
+	 * Compile a script one top level unit at a time. A unit is a statement, or
+	 * a Setup/Loop/For block up to its End with everything nested inside it.
+	 */
+	public Result compile(CharSequence source) {
+		Lexer lexer = new Lexer(source);
+		Lexer.StatementTokens tokens = new Lexer.StatementTokens();
+		Arduino.Sequence sequence = new Arduino.Sequence();
+
+		int depth = 0;
+		int unitStart = -1;
+		long h1 = 0;
+		long h2 = 0;
+		// hash of the units so far, the key of the whole program
+		long p1 = FNV_BASIS;
+		long p2 = 0;
+		while (lexer.nextStatement(tokens)) {
+			if (unitStart < 0) {
+				unitStart = tokens.start();
+				h1 = FNV_BASIS;
+				h2 = 0;
+			}
+			Key statement = key(tokens);
+			h1 = (h1 ^ statement.h1) * FNV_PRIME;
+			h2 = Long.rotateLeft(h2, 23) * MIX + statement.h2;
+			if (opensBlock(tokens)) {
+				depth++;
+			} else if (tokens.is(0, Lexer.Keyword.END)) {
+				depth--;
+			}
+			if (depth > 0) {
+				continue;
+			}
+			// the unit is complete
+			depth = 0;
+			Key unit = new Key(h1, h2);
+			p1 = (p1 ^ h1) * FNV_PRIME;
+			p2 = Long.rotateLeft(p2, 23) * MIX + h2;
+			Entry entry = get(unit, UNIT);
+			if (entry == null) {
+				Parser.Context parse = parser.context(source, unitStart,
+						lexer.position());
+				Arduino.Sequence parsed = parse.parseSequence();
+				if (parse.failed()) {
+					return new Result(new Arduino.Program(sequence), null,
+							parse.errorMessage());
+				}
+				entry = put(unit, new Entry(parsed.children.isEmpty() ? null
+						: parsed.children.get(0)));
+			}
+			if (entry.node != null) {
+				sequence.addNode(entry.node);
+			}
+			unitStart = -1;
+		}
+		if (unitStart >= 0) {
+			// a block left open at the end of the source
+			Parser.Context parse = parser.context(source, unitStart,
+					source.length());
+			parse.parseSequence();
+			return new Result(new Arduino.Program(sequence), null,
+					parse.errorMessage());
+		}
+		Arduino.Program program = new Arduino.Program(sequence);
+		Key whole = new Key(p1, p2);
+		String code = program(whole);
+		if (code == null) {
+			// generated outside the lock, like parsing
+			code = compiler.compile(program);
+			putProgram(whole, code);
+		}
+		return new Result(program, code, null);
+	}
+
+	// Used by the parser for statements inside blocks that missed the cache
+	Arduino.Node lookup(Lexer.StatementTokens tokens) {
+		Entry entry = get(key(tokens), STATEMENT);
+		return entry != null ? entry.node : null;
+	}
+
+	void store(Lexer.StatementTokens tokens, Arduino.Node node) {
+		put(key(tokens), new Entry(node));
+	}
+
+	// Lookups of the given kind that were found
+	public synchronized long hits(int kind) {
+		return hits[kind];
+	}
+
+	// Lookups of the given kind that were not
+	public synchronized long misses(int kind) {
+		return misses[kind];
+	}
+
+	// Parsed statements and units held
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	// Programs held, and the length of their code
+	public synchronized int programs() {
+		return programs.size();
+	}
+
+	public synchronized long programChars() {
+		return programWeight;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder s = new StringBuilder("cache");
+		for (int kind = 0; kind < KINDS.length; kind++) {
+			s.append(kind == 0 ? " " : ", ").append(KINDS[kind])
+					.append(" hits ").append(hits[kind]).append(" misses ")
+					.append(misses[kind]);
+		}
+		return s.append(", entries ").append(entries.size())
+				.append(", programs ").append(programs.size()).toString();
+	}
+
+	private synchronized Entry get(Key key, int kind) {
+		Entry entry = entries.get(key);
+		count(entry != null, kind);
+		return entry;
+	}
+
+	private synchronized String program(Key key) {
+		String code = programs.get(key);
+		count(code != null, PROGRAM);
+		return code;
+	}
+
+	private void count(boolean hit, int kind) {
+		if (hit) {
+			hits[kind]++;
+		} else {
+			misses[kind]++;
+		}
+	}
+
+	// Keep code, dropping the least recently used programs while the total
+	// is over the bound; code longer than the bound on its own is not kept
+	private synchronized void putProgram(Key key, String code) {
+		if (code.length() > programChars) {
+			return;
+		}
+		String old = programs.put(key, code);
+		programWeight += code.length() - (old == null ? 0 : old.length());
+		Iterator<String> eldest = programs.values().iterator();
+		while (programWeight > programChars) {
+			programWeight -= eldest.next().length();
+			eldest.remove();
+		}
+	}
+
+	private synchronized Entry put(Key key, Entry entry) {
+		entries.put(key, entry);
+		return entry;
+	}
+
+	static boolean opensBlock(Lexer.StatementTokens tokens) {
+		return tokens.is(0, Lexer.Keyword.SETUP)
+				|| tokens.is(0, Lexer.Keyword.LOOP)
+				|| tokens.is(0, Lexer.Keyword.FOR);
+	}
+
+	private static final long FNV_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final long MIX = 0x9E3779B97F4A7C15L;
+
+	// Hash the normalized tokens of one statement without building a string
+	static Key key(Lexer.StatementTokens tokens) {
+		long h1 = FNV_BASIS;
+		long h2 = 0;
+		for (int i = 0; i < tokens.count; i++) {
+			Lexer.Kind kind = tokens.kinds[i];
+			long tag = kind.ordinal() + 1;
+			h1 = (h1 ^ tag) * FNV_PRIME;
+			h2 = Long.rotateLeft(h2, 23) * MIX + tag;
+			switch (kind) {
+			case KEYWORD:
+				h1 = (h1 ^ tokens.keywords[i].ordinal()) * FNV_PRIME;
+				h2 = Long.rotateLeft(h2, 23) * MIX + tokens.keywords[i].ordinal();
+				break;
+			case INTEGER:
+				h1 = (h1 ^ tokens.values[i]) * FNV_PRIME;
+				h2 = Long.rotateLeft(h2, 23) * MIX + tokens.values[i];
+				break;
+			default:
+				for (int p = tokens.starts[i]; p < tokens.ends[i]; p++) {
+					char c = tokens.source.charAt(p);
+					h1 = (h1 ^ c) * FNV_PRIME;
+					h2 = Long.rotateLeft(h2, 23) * MIX + c;
+				}
+			}
+		}
+		return new Key(h1, h2);
+	}
+}
@@ -0,0 +1,233 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Where compile time goes: lexing, parsing and emitting code, per source.
+ * Every named parse and compile adds its totals to the registry, and commits
+ * a Flight Recorder event, begun when the work started, when a recording has
+ * arduino.Parse or arduino.Emit enabled, so the same numbers can be read from
+ * a live service or from any .jfr file with the jfr tool or Mission Control.
+ *
+ * Recording is done once per parse or compile, never per statement; the only
+ * per statement cost is timing one lexer call in LEX_SAMPLE, from which the
+ * lexing time of the whole parse is estimated. At most MAX_SOURCES names are
+ * kept apart, with the totals of any after them under "other".
+ */
+public class CompileMetrics {
+	// One statement window in this many has its lexing timed
+	static final int LEX_SAMPLE = 8;
+	// Source names kept apart; names can come from clients of CompileService,
+	// so the rest share one entry rather than growing the registry forever
+	static final int MAX_SOURCES = 256;
+	static final String OTHER = "other";
+
+	public enum Phase {
+		LEX, PARSE, EMIT
+	}
+
+	public static final CompileMetrics REGISTRY = new CompileMetrics();
+
+	/**
+	 * Sums for one phase of one source. Statements are statement windows for
+	 * LEX and statements for PARSE, lines for EMIT; bytes are chars scanned
+	 * for LEX and chars written for EMIT.
+	 */
+	public static class Totals {
+		public final LongAdder runs = new LongAdder();
+		public final LongAdder nanos = new LongAdder();
+		public final LongAdder statements = new LongAdder();
+		public final LongAdder nodes = new LongAdder();
+		public final LongAdder tokens = new LongAdder();
+		public final LongAdder bytes = new LongAdder();
+	}
+
+	private final Map<String, Totals[]> sources = new ConcurrentHashMap<String, Totals[]>();
+
+	// Totals of a source; once MAX_SOURCES names are kept, a new one is
+	// counted under OTHER
+	public Totals totals(Phase phase, String source) {
+		Totals[] phases = sources.get(source);
+		if (phases == null) {
+			if (sources.size() >= MAX_SOURCES) {
+				source = OTHER;
+				phases = sources.get(source);
+			}
+			if (phases == null) {
+				phases = new Totals[Phase.values().length];
+				for (int i = 0; i < phases.length; i++) {
+					phases[i] = new Totals();
+				}
+				Totals[] raced = sources.putIfAbsent(source, phases);
+				if (raced != null) {
+					phases = raced;
+				}
+			}
+		}
+		return phases[phase.ordinal()];
+	}
+
+	public void clear() {
+		sources.clear();
+	}
+
+	// Totals of a parse, ending its event; lexNanos is the estimated share of
+	// nanos spent lexing
+	void parsed(ParseEvent event, String source, long nanos, long lexNanos,
+			long statements, long nodes, long tokens, long chars, int errors) {
+		// a stall in a sampled call can take the estimate past the whole parse
+		lexNanos = Math.min(lexNanos, nanos);
+		Totals lex = totals(Phase.LEX, source);
+		lex.runs.increment();
+		lex.nanos.add(lexNanos);
+		lex.statements.add(statements);
+		lex.tokens.add(tokens);
+		lex.bytes.add(chars);
+		Totals parse = totals(Phase.PARSE, source);
+		parse.runs.increment();
+		parse.nanos.add(nanos - lexNanos);
+		parse.statements.add(statements);
+		parse.nodes.add(nodes);
+
+		if (event.shouldCommit()) {
+			event.source = source;
+			event.statements = statements;
+			event.nodes = nodes;
+			event.tokens = tokens;
+			event.chars = chars;
+			event.lexTime = lexNanos;
+			event.errors = errors;
+			event.commit();
+		}
+	}
+
+	// Totals of generating code, ending its event
+	void emitted(EmitEvent event, String source, long nanos, long lines,
+			long chars) {
+		Totals emit = totals(Phase.EMIT, source);
+		emit.runs.increment();
+		emit.nanos.add(nanos);
+		emit.statements.add(lines);
+		emit.bytes.add(chars);
+
+		if (event.shouldCommit()) {
+			event.source = source;
+			event.lines = lines;
+			event.bytes = chars;
+			event.commit();
+		}
+	}
+
+	// Totals per phase summed over all sources, or per source as well
+	public String toJson(boolean perSource) {
+		StringBuilder json = new StringBuilder("{");
+		Map<String, Totals[]> sorted = new TreeMap<String, Totals[]>(sources);
+		long[][] sums = new long[Phase.values().length][6];
+		for (Totals[] phases : sorted.values()) {
+			for (Phase phase : Phase.values()) {
+				long[] values = values(phases[phase.ordinal()]);
+				for (int i = 0; i < values.length; i++) {
+					sums[phase.ordinal()][i] += values[i];
+				}
+			}
+		}
+		phases(json, sums);
+		if (perSource) {
+			json.append(",\"sources\":{");
+			String separator = "";
+			for (Map.Entry<String, Totals[]> entry : sorted.entrySet()) {
+				json.append(separator);
+				CompileService.quote(json, entry.getKey());
+				json.append(":{");
+				long[][] values = new long[Phase.values().length][];
+				for (Phase phase : Phase.values()) {
+					values[phase.ordinal()] = values(entry.getValue()[phase
+							.ordinal()]);
+				}
+				phases(json, values);
+				json.append('}');
+				separator = ",";
+			}
+			json.append('}');
+		}
+		return json.append('}').toString();
+	}
+
+	private static long[] values(Totals t) {
+		return new long[] { t.runs.sum(), t.nanos.sum(), t.statements.sum(),
+				t.nodes.sum(), t.tokens.sum(), t.bytes.sum() };
+	}
+
+	private static void phases(StringBuilder json, long[][] values) {
+		String separator = "";
+		for (Phase phase : Phase.values()) {
+			long[] v = values[phase.ordinal()];
+			json.append(separator).append('"')
+					.append(phase.name().toLowerCase()).append("\":{\"runs\":")
+					.append(v[0]).append(",\"us\":").append(v[1] / 1000)
+					.append(",\"statements\":").append(v[2])
+					.append(",\"nodes\":").append(v[3]).append(",\"tokens\":")
+					.append(v[4]).append(",\"bytes\":").append(v[5]).append('}');
+			separator = ",";
+		}
+	}
+
+	@Name("arduino.Parse")
+	@Label("Arduino Parse")
+	@Category({ "Arduino", "Compiler" })
+	@Description("Lexing and parsing of one script")
+	@StackTrace(false)
+	static class ParseEvent extends Event {
+		@Label("Source")
+		String source;
+
+		@Label("Statements")
+		long statements;
+
+		@Label("Nodes Created")
+		long nodes;
+
+		@Label("Tokens")
+		long tokens;
+
+		@Label("Chars Scanned")
+		@DataAmount(DataAmount.BYTES)
+		long chars;
+
+		@Label("Lexing Time")
+		@Description("Estimated from one statement window in "
+				+ CompileMetrics.LEX_SAMPLE)
+		@Timespan(Timespan.NANOSECONDS)
+		long lexTime;
+
+		@Label("Errors")
+		int errors;
+	}
+
+	@Name("arduino.Emit")
+	@Label("Arduino Emit")
+	@Category({ "Arduino", "Compiler" })
+	@Description("Passes and code generation for one program")
+	@StackTrace(false)
+	static class EmitEvent extends Event {
+		@Label("Source")
+		String source;
+
+		@Label("Lines")
+		long lines;
+
+		@Label("Chars Written")
+		@DataAmount(DataAmount.BYTES)
+		long bytes;
+	}
+}
@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running compile service bound to localhost.
+ *
+ * POST /compile with the script as the body answers with JSON holding the
+ * generated sketch and any diagnostics. GET /stats reports request latency
+ * percentiles. Requests run on virtual threads when the JDK has them, and
+ * all of them share one warmed up parser and compiler. A script longer than
+ * MAX_SOURCE bytes is refused; the parser bounds the time and stack of the
+ * rest.
+ *
+ * Usage: java CompileService [port]
+ */
+public class CompileService {
+	private static final int SAMPLES = 4096;
+	static final int MAX_SOURCE = 4 << 20;
+
+	private final Parser parser = new Parser();
+	private final Arduino.ArduinoCompiler compiler = new Arduino.ArduinoCompiler();
+	private final Latencies latencies = new Latencies(SAMPLES);
+	private HttpServer server;
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		CompileService service = new CompileService();
+		service.start(port);
+		System.out.println("Compile service listening on http://localhost:"
+				+ service.server.getAddress().getPort() + "/compile");
+	}
+
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/compile", new CompileHandler());
+		server.createContext("/stats", new StatsHandler());
+		server.createContext("/metrics", new MetricsHandler());
+		server.setExecutor(requestExecutor());
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	// A virtual thread per request when available, plain threads otherwise
+	static ExecutorService requestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	String compile(String source) {
+		return compile(source, "request");
+	}
+
+	// Parse and compile one script, answering with its JSON result; name is
+	// what CompileMetrics counts it under
+	String compile(String source, String name) {
+		Diagnostics.Collector diagnostics = new Diagnostics.Collector(
+				Diagnostics.Severity.WARNING);
+		Parser.Context parse = parser.context(source, diagnostics).named(name);
+		Arduino.Program program = parse.parseProgram();
+		StringBuilder json = new StringBuilder();
+		json.append("{\"ok\":").append(!parse.failed());
+		if (parse.failed()) {
+			json.append(",\"code\":null");
+		} else {
+			SymbolTable.build(program, diagnostics);
+			json.append(",\"code\":");
+			quote(json, compiler.compile(program, name));
+		}
+		json.append(",\"diagnostics\":[");
+		String separator = "";
+		for (Diagnostics.Event event : diagnostics.events()) {
+			json.append(separator).append("{\"severity\":\"")
+					.append(event.severity).append("\",\"start\":")
+					.append(event.start).append(",\"end\":").append(event.end)
+					.append(",\"message\":");
+			quote(json, event.message);
+			json.append('}');
+			separator = ",";
+		}
+		return json.append("]}").toString();
+	}
+
+	// Every request is answered, with 400 for a bad query and 500 when the
+	// compiler fails, and the exchange is always closed
+	class CompileHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			long begin = System.nanoTime();
+			try {
+				if (!exchange.getRequestMethod().equals("POST")) {
+					send(exchange, 405, "{\"error\":\"POST the script source\"}");
+					return;
+				}
+				String name;
+				try {
+					name = sourceName(exchange);
+				} catch (IllegalArgumentException e) {
+					send(exchange, 400, error("bad source name: " + e.getMessage()));
+					return;
+				}
+				String source = read(exchange.getRequestBody());
+				if (source == null) {
+					send(exchange, 413, "{\"error\":\"script longer than "
+							+ MAX_SOURCE + " bytes\"}");
+					return;
+				}
+				String result;
+				try {
+					result = compile(source, name);
+				} catch (RuntimeException | Error e) {
+					send(exchange, 500, error("compiler failed: " + e));
+					return;
+				}
+				send(exchange, 200, result);
+			} finally {
+				latencies.record(System.nanoTime() - begin);
+				exchange.close();
+			}
+		}
+	}
+
+	private static String error(String message) {
+		StringBuilder json = new StringBuilder("{\"error\":");
+		quote(json, message);
+		return json.append('}').toString();
+	}
+
+	class StatsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			send(exchange, 200, latencies.toJson());
+		}
+	}
+
+	// Time and counts per compile phase, in all and per source name
+	class MetricsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			send(exchange, 200, CompileMetrics.REGISTRY.toJson(true));
+		}
+	}
+
+	// The name a script is posted under with /compile?source=name, or
+	// "request"
+	static String sourceName(HttpExchange exchange) {
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				if (pair.startsWith("source=") && pair.length() > 7) {
+					return URLDecoder.decode(pair.substring(7),
+							StandardCharsets.UTF_8);
+				}
+			}
+		}
+		return "request";
+	}
+
+	/**
+	 * Latencies of the most recent requests, kept in a ring so percentiles
+	 * follow the current load rather than the whole lifetime of the service.
+	 */
+	static class Latencies {
+		private final long[] ring;
+		private long count;
+
+		Latencies(int size) {
+			ring = new long[size];
+		}
+
+		synchronized void record(long nanos) {
+			ring[(int) (count++ % ring.length)] = nanos;
+		}
+
+		String toJson() {
+			long[] sorted;
+			long total;
+			synchronized (this) {
+				total = count;
+				sorted = Arrays.copyOf(ring, (int) Math.min(count, ring.length));
+			}
+			Arrays.sort(sorted);
+			return "{\"requests\":" + total + ",\"p50_us\":"
+					+ percentile(sorted, 50) + ",\"p90_us\":"
+					+ percentile(sorted, 90) + ",\"p99_us\":"
+					+ percentile(sorted, 99) + ",\"max_us\":"
+					+ percentile(sorted, 100) + "}";
+		}
+
+		static long percentile(long[] sorted, int p) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+			return sorted[Math.max(0, i)] / 1000;
+		}
+	}
+
+	// The body, or null when it is longer than MAX_SOURCE
+	private static String read(InputStream in) throws IOException {
+		try {
+			byte[] bytes = in.readNBytes(MAX_SOURCE + 1);
+			return bytes.length > MAX_SOURCE ? null : new String(bytes,
+					StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String body)
+			throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	static void quote(StringBuilder json, String s) {
+		json.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+}
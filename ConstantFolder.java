@@ -0,0 +1,285 @@
+/**
+ * Evaluates arithmetic whose operands are all literals, so the sketch stores
+ * the result instead of computing it on the board every time round the loop.
+ * "X is remainder of 7 / 5." becomes "int X = 2;", and "y is 2 * 60 + x."
+ * becomes "int y = 120 + x;". Adding zero and multiplying or dividing by one
+ * are dropped as well.
+ *
+ * An int on the AVR boards is 16 bits, so a result that would overflow there
+ * is left for the board to compute, as is division by zero.
+ */
+public class ConstantFolder implements Pass, Arduino.Visitor<Arduino.Node> {
+	static final int INT_MIN = -32768;
+	static final int INT_MAX = 32767;
+
+	public Arduino.Node apply(Arduino.Node node) {
+		// a Sequence visits its children rather than itself
+		if (node instanceof Arduino.Sequence) {
+			return fold((Arduino.Sequence) node);
+		}
+		return node.accept(this);
+	}
+
+	private Arduino.Expression fold(Arduino.Expression e) {
+		return (Arduino.Expression) e.accept(this);
+	}
+
+	// A folded sequence, or the same one if none of its children changed
+	private Arduino.Sequence fold(Arduino.Sequence sequence) {
+		Arduino.Sequence folded = null;
+		int size = sequence.size();
+		for (int i = 0; i < size; i++) {
+			Arduino.Node child = sequence.get(i);
+			Arduino.Node result = child.accept(this);
+			if (result != child && folded == null) {
+				folded = new Arduino.Sequence();
+				for (int j = 0; j < i; j++) {
+					folded.addNode(sequence.get(j));
+				}
+			}
+			if (folded != null) {
+				folded.addNode(result);
+			}
+		}
+		return folded == null ? sequence : folded;
+	}
+
+	private static boolean isLiteral(Arduino.Expression e, int n) {
+		return e instanceof Arduino.Number && ((Arduino.Number) e).n == n;
+	}
+
+	private static Arduino.Number literal(long value) {
+		if (value < INT_MIN || value > INT_MAX) {
+			return null;
+		}
+		return new Arduino.Number((int) value);
+	}
+
+	// Value of a binary operator over two literals, or null if it must stay
+	private static Arduino.Number evaluate(char op, Arduino.Expression left,
+			Arduino.Expression right) {
+		if (!(left instanceof Arduino.Number && right instanceof Arduino.Number)) {
+			return null;
+		}
+		long a = ((Arduino.Number) left).n;
+		long b = ((Arduino.Number) right).n;
+		if (literal(a) == null || literal(b) == null) {
+			return null;
+		}
+		switch (op) {
+		case '+':
+			return literal(a + b);
+		case '-':
+			return literal(a - b);
+		case '*':
+			return literal(a * b);
+		case '/':
+			return b == 0 ? null : literal(a / b);
+		case '%':
+			return b == 0 ? null : literal(a % b);
+		default:
+			return null;
+		}
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Program program) {
+		if (!(program.body instanceof Arduino.Sequence)) {
+			return program;
+		}
+		Arduino.Sequence body = (Arduino.Sequence) program.body;
+		Arduino.Sequence folded = fold(body);
+		return folded == body ? program : new Arduino.Program(folded);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Loop loop) {
+		Arduino.Sequence body = fold(loop.body);
+		return body == loop.body ? loop : new Arduino.Loop(body);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.setUp setUp) {
+		Arduino.Sequence body = fold(setUp.body);
+		return body == setUp.body ? setUp : new Arduino.setUp(body);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.forLoop forLoop) {
+		Arduino.Sequence body = fold(forLoop.body);
+		return body == forLoop.body ? forLoop : new Arduino.forLoop(forLoop.id,
+				forLoop.initValue, forLoop.maxValue, body);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Assign assign) {
+		Arduino.Expression value = fold(assign.value);
+		return value == assign.value ? assign : new Arduino.Assign(
+				assign.variable, value);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.remainder remainder) {
+		Arduino.Expression first = fold(remainder.firstNumber);
+		Arduino.Expression second = fold(remainder.secNumber);
+		Arduino.Number value = evaluate('%', first, second);
+		if (value != null && remainder.id instanceof Arduino.Id) {
+			return new Arduino.Assign((Arduino.Id) remainder.id, value);
+		}
+		if (first == remainder.firstNumber && second == remainder.secNumber) {
+			return remainder;
+		}
+		return new Arduino.remainder(remainder.id, first, second);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Plus op) {
+		Arduino.Expression left = fold(op.left);
+		Arduino.Expression right = fold(op.right);
+		Arduino.Number value = evaluate('+', left, right);
+		if (value != null) {
+			return value;
+		}
+		if (isLiteral(right, 0)) {
+			return left;
+		}
+		if (isLiteral(left, 0)) {
+			return right;
+		}
+		return left == op.left && right == op.right ? op : new Arduino.Plus(
+				left, right);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Minus op) {
+		Arduino.Expression left = fold(op.left);
+		Arduino.Expression right = fold(op.right);
+		Arduino.Number value = evaluate('-', left, right);
+		if (value != null) {
+			return value;
+		}
+		if (isLiteral(right, 0)) {
+			return left;
+		}
+		return left == op.left && right == op.right ? op : new Arduino.Minus(
+				left, right);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Times op) {
+		Arduino.Expression left = fold(op.left);
+		Arduino.Expression right = fold(op.right);
+		Arduino.Number value = evaluate('*', left, right);
+		if (value != null) {
+			return value;
+		}
+		if (isLiteral(right, 1)) {
+			return left;
+		}
+		if (isLiteral(left, 1)) {
+			return right;
+		}
+		return left == op.left && right == op.right ? op : new Arduino.Times(
+				left, right);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Divide op) {
+		Arduino.Expression left = fold(op.left);
+		Arduino.Expression right = fold(op.right);
+		Arduino.Number value = evaluate('/', left, right);
+		if (value != null) {
+			return value;
+		}
+		if (isLiteral(right, 1)) {
+			return left;
+		}
+		return left == op.left && right == op.right ? op : new Arduino.Divide(
+				left, right);
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Operator op) {
+		return op;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Number num) {
+		return num;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Id id) {
+		return id;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Branch branch) {
+		return branch;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Type type) {
+		return type;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.HIGH high) {
+		return high;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.LOW low) {
+		return low;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.IOvalue iOvalue) {
+		return iOvalue;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.pinMode pinMode) {
+		return pinMode;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.digitalWrite digitalWrite) {
+		return digitalWrite;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.analogWrite analogWrite) {
+		return analogWrite;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.digitalRead digitalRead) {
+		return digitalRead;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.analogRead analogRead) {
+		return analogRead;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Break break1) {
+		return break1;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Continue continue1) {
+		return continue1;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Return return1) {
+		return return1;
+	}
+
+	@Override
+	public Arduino.Node visit(Arduino.Goto goto1) {
+		return goto1;
+	}
+}
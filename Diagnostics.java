@@ -0,0 +1,131 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receives what the parser recognizes and the errors it finds, each with the
+ * source span it applies to. NONE drops everything and is the default; a
+ * Collector keeps events for later, and a Logger prints them as they happen.
+ */
+public interface Diagnostics {
+
+	enum Severity {
+		TRACE, WARNING, ERROR
+	}
+
+	// A statement was recognized; event names the kind of statement
+	void trace(String event, int start, int end);
+
+	// Something suspicious that does not stop the program compiling
+	void warning(String message, int start, int end);
+
+	void error(String message, int start, int end);
+
+	Diagnostics NONE = new Diagnostics() {
+		public void trace(String event, int start, int end) {
+		}
+
+		public void warning(String message, int start, int end) {
+		}
+
+		public void error(String message, int start, int end) {
+		}
+	};
+
+	// One recorded diagnostic covering source offsets [start, end)
+	class Event {
+		public final Severity severity;
+		public final String message;
+		public final int start;
+		public final int end;
+
+		public Event(Severity severity, String message, int start, int end) {
+			this.severity = severity;
+			this.message = message;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public String toString() {
+			return severity + " [" + start + ", " + end + ") " + message;
+		}
+	}
+
+	// Keeps every event at or above a severity
+	class Collector implements Diagnostics {
+		private final Severity minimum;
+		private final List<Event> events = new ArrayList<Event>();
+		private int errors;
+
+		public Collector() {
+			this(Severity.TRACE);
+		}
+
+		public Collector(Severity minimum) {
+			this.minimum = minimum;
+		}
+
+		public void trace(String event, int start, int end) {
+			if (minimum == Severity.TRACE) {
+				events.add(new Event(Severity.TRACE, event, start, end));
+			}
+		}
+
+		public void warning(String message, int start, int end) {
+			if (minimum != Severity.ERROR) {
+				events.add(new Event(Severity.WARNING, message, start, end));
+			}
+		}
+
+		public void error(String message, int start, int end) {
+			errors++;
+			events.add(new Event(Severity.ERROR, message, start, end));
+		}
+
+		public List<Event> events() {
+			return events;
+		}
+
+		public int errors() {
+			return errors;
+		}
+
+		// Pass every event kept on to another sink, in the order received
+		public void replay(Diagnostics to) {
+			for (Event e : events) {
+				switch (e.severity) {
+				case TRACE:
+					to.trace(e.message, e.start, e.end);
+					break;
+				case WARNING:
+					to.warning(e.message, e.start, e.end);
+					break;
+				default:
+					to.error(e.message, e.start, e.end);
+				}
+			}
+		}
+	}
+
+	// Prints every event to a stream
+	class Logger implements Diagnostics {
+		private final PrintStream out;
+
+		public Logger(PrintStream out) {
+			this.out = out;
+		}
+
+		public void trace(String event, int start, int end) {
+			out.println(new Event(Severity.TRACE, event, start, end));
+		}
+
+		public void warning(String message, int start, int end) {
+			out.println(new Event(Severity.WARNING, message, start, end));
+		}
+
+		public void error(String message, int start, int end) {
+			out.println(new Event(Severity.ERROR, message, start, end));
+		}
+	}
+}
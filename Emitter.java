@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes generated sketch code with indentation tracking. By default the code
+ * goes into a reusable StringBuilder; any other Appendable (a Writer for
+ * instance) can be given instead to stream the output.
+ */
+public class Emitter {
+	private static final String INDENT = "  ";
+
+	private final Appendable out;
+	private final StringBuilder buffer;
+	private int depth;
+	private boolean lineStart = true;
+	private long written;
+	private long lines;
+
+	public Emitter() {
+		this(new StringBuilder());
+	}
+
+	public Emitter(Appendable out) {
+		this.out = out;
+		this.buffer = out instanceof StringBuilder ? (StringBuilder) out : null;
+	}
+
+	public Emitter append(CharSequence s) {
+		indent();
+		write(s);
+		return this;
+	}
+
+	public Emitter append(int n) {
+		indent();
+		if (buffer != null) {
+			int before = buffer.length();
+			buffer.append(n);
+			written += buffer.length() - before;
+		} else {
+			write(Integer.toString(n));
+		}
+		return this;
+	}
+
+	public Emitter newline() {
+		lines++;
+		write("\n");
+		lineStart = true;
+		return this;
+	}
+
+	// Start a block: "header {" and indent what follows
+	public Emitter open(CharSequence header) {
+		append(header).append(" {").newline();
+		depth++;
+		return this;
+	}
+
+	public Emitter close() {
+		depth--;
+		return append("}").newline();
+	}
+
+	// Drop anything buffered so the builder can be reused for the next program
+	public void reset() {
+		if (buffer != null) {
+			buffer.setLength(0);
+		}
+		depth = 0;
+		lineStart = true;
+		written = 0;
+		lines = 0;
+	}
+
+	// Number of characters written since the last reset
+	public long written() {
+		return written;
+	}
+
+	// Number of lines ended since the last reset
+	public long lines() {
+		return lines;
+	}
+
+	// The buffered code, or null when streaming to another Appendable
+	public String text() {
+		return buffer != null ? buffer.toString() : null;
+	}
+
+	private void indent() {
+		if (lineStart) {
+			lineStart = false;
+			for (int i = 0; i < depth; i++) {
+				write(INDENT);
+			}
+		}
+	}
+
+	private void write(CharSequence s) {
+		try {
+			out.append(s);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		written += s.length();
+	}
+}
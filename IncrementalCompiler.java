@@ -0,0 +1,368 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Keeps a script and its tree in step with edits made in an editor. The
+ * script is held as top level units (a statement, or a block up to its End)
+ * with their offsets. An edit reparses only the units it touches, carrying on
+ * past them just until the unit boundaries line up with the old ones again,
+ * and splices the new nodes into the program's Sequence. A unit that no
+ * longer parses keeps the last node that did, so the code stays whole while
+ * it is being typed.
+ *
+ * Code is generated a unit at a time and kept. What depends on the units
+ * before, whether an assignment declares its variable and which variables
+ * are declared at the top, is worked out again from the names each unit
+ * assigns and uses; a unit's code is generated again only when whether it
+ * declares changes, and the declarations at the top only when the variables
+ * they declare do. As in a StreamingCompiler, the passes see one unit at a
+ * time, so the code can be less optimized than that of the whole Program.
+ */
+public class IncrementalCompiler {
+
+	// One top level statement or block and what was made from it
+	static class Unit {
+		int start;
+		int end;
+		Arduino.Node node;
+		String error;
+		// node after the passes as top level statements, made by code()
+		Statement[] statements;
+
+		Unit(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	// A top level statement of a unit after the passes, with the names that
+	// decide the declarations and its code as last generated
+	static class Statement {
+		final Arduino.Node node;
+		final int target;
+		final BitSet assigned = new BitSet();
+		final BitSet used = new BitSet();
+		// every name in it, in the order a Generator first meets them
+		final int[] names;
+		String code;
+		boolean declares;
+
+		Statement(Arduino.Node node, SymbolTable symbols) {
+			this.node = node;
+			// gathered in a table of its own, whose symbols follow that order
+			SymbolTable own = new SymbolTable();
+			Arduino.Id id = Arduino.ArduinoCompiler.Generator.Names.target(node);
+			if (id != null) {
+				own.symbol(id);
+			}
+			Arduino.ArduinoCompiler.Generator.Names found = new Arduino.ArduinoCompiler.Generator.Names(
+					own);
+			found.apply(node);
+			names = new int[own.size()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = symbols.intern(own.name(i));
+				assigned.set(names[i], found.assigned.get(i));
+				used.set(names[i], found.used.get(i));
+			}
+			target = id == null ? -1 : names[0];
+		}
+	}
+
+	private final Parser parser = new Parser();
+	private final Arduino.ArduinoCompiler compiler = new Arduino.ArduinoCompiler();
+	private final StringBuilder text = new StringBuilder();
+	private final List<Unit> units = new ArrayList<Unit>();
+	private final Arduino.Sequence sequence = new Arduino.Sequence();
+	private final Arduino.Program program = new Arduino.Program(sequence);
+	private final SymbolTable symbols = new SymbolTable();
+	// variables declared at the top, in order, and the declarations
+	private int[] headerNames = new int[0];
+	private String header = "";
+	private int reparsed;
+
+	public IncrementalCompiler(String source) {
+		text.append(source);
+		Lexer lexer = new Lexer(text);
+		Lexer.StatementTokens tokens = new Lexer.StatementTokens();
+		Unit unit;
+		while ((unit = nextUnit(lexer, tokens)) != null) {
+			units.add(unit);
+			if (unit.node != null) {
+				sequence.addNode(unit.node);
+			}
+		}
+	}
+
+	/**
+	 * Replace removed characters at offset with inserted and bring the tree up
+	 * to date.
+	 */
+	public void edit(int offset, int removed, String inserted) {
+		int editEnd = offset + removed;
+		int insertedEnd = offset + inserted.length();
+		int delta = inserted.length() - removed;
+		text.replace(offset, editEnd, inserted);
+
+		// first unit the edit touches; units ending before it are untouched
+		int first = 0;
+		int child = 0;
+		while (first < units.size() && units.get(first).end < offset) {
+			if (units.get(first).node != null) {
+				child++;
+			}
+			first++;
+		}
+		int from = offset;
+		if (first < units.size()) {
+			from = Math.min(units.get(first).start, offset);
+		}
+
+		Lexer lexer = new Lexer(text, from, text.length());
+		Lexer.StatementTokens tokens = new Lexer.StatementTokens();
+		List<Unit> fresh = new ArrayList<Unit>();
+		int last = first;
+		Unit unit;
+		while ((unit = nextUnit(lexer, tokens)) != null) {
+			fresh.add(unit);
+			// old units overlapping the edit or this unit are replaced
+			while (last < units.size()
+					&& (units.get(last).start <= editEnd || units.get(last).start
+							+ delta < unit.end)) {
+				last++;
+			}
+			boolean pastEdit = unit.end >= insertedEnd;
+			boolean coversOld = last == first
+					|| newEnd(units.get(last - 1), editEnd, insertedEnd, delta) <= unit.end;
+			if (pastEdit && coversOld) {
+				break;
+			}
+		}
+		if (unit == null) {
+			last = units.size();
+		}
+
+		// splice the replaced nodes out of the sequence and the new ones in
+		int oldChildren = 0;
+		for (int i = first; i < last; i++) {
+			if (units.get(i).node != null) {
+				oldChildren++;
+			}
+		}
+		sequence.children.subList(child, child + oldChildren).clear();
+		keepLastGood(fresh, first, last);
+		List<Arduino.Node> nodes = new ArrayList<Arduino.Node>();
+		for (Unit u : fresh) {
+			if (u.node != null) {
+				nodes.add(u.node);
+			}
+		}
+		sequence.children.addAll(child, nodes);
+		units.subList(first, last).clear();
+		units.addAll(first, fresh);
+		for (int i = first + fresh.size(); i < units.size(); i++) {
+			units.get(i).start += delta;
+			units.get(i).end += delta;
+		}
+		reparsed = fresh.size();
+	}
+
+	// Work out the edit from the editor's new contents and apply it
+	public void setText(String newText) {
+		int oldLength = text.length();
+		int newLength = newText.length();
+		int prefix = 0;
+		int max = Math.min(oldLength, newLength);
+		while (prefix < max && text.charAt(prefix) == newText.charAt(prefix)) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < max - prefix
+				&& text.charAt(oldLength - 1 - suffix) == newText
+						.charAt(newLength - 1 - suffix)) {
+			suffix++;
+		}
+		if (prefix == oldLength && prefix == newLength) {
+			return;
+		}
+		edit(prefix, oldLength - prefix - suffix,
+				newText.substring(prefix, newLength - suffix));
+	}
+
+	public Arduino.Program program() {
+		return program;
+	}
+
+	// Generated code of every unit, from the last node of it that parsed
+	public String code() {
+		for (Unit unit : units) {
+			if (unit.node != null && unit.statements == null) {
+				unit.statements = statements(unit.node);
+			}
+		}
+		// which assignments declare their variable, as Generator.scan decides
+		BitSet assigned = new BitSet();
+		BitSet used = new BitSet();
+		BitSet inPlace = new BitSet();
+		BitSet seen = new BitSet();
+		int[] order = new int[symbols.size()];
+		int count = 0;
+		for (Unit unit : units) {
+			if (unit.node == null) {
+				continue;
+			}
+			for (Statement statement : unit.statements) {
+				for (int name : statement.names) {
+					if (!seen.get(name)) {
+						seen.set(name);
+						order[count++] = name;
+					}
+				}
+				int target = statement.target;
+				boolean first = target >= 0 && !used.get(target)
+						&& !assigned.get(target);
+				assigned.or(statement.assigned);
+				used.or(statement.used);
+				boolean declares = first && !used.get(target);
+				if (declares) {
+					inPlace.set(target);
+				}
+				if (statement.code == null || statement.declares != declares) {
+					statement.code = generate(statement, declares);
+					statement.declares = declares;
+				}
+			}
+		}
+
+		// the globals in the order the whole Program would declare them
+		int globals = 0;
+		for (int i = 0; i < count; i++) {
+			if (assigned.get(order[i]) && !inPlace.get(order[i])) {
+				order[globals++] = order[i];
+			}
+		}
+		int[] names = Arrays.copyOf(order, globals);
+		if (!Arrays.equals(names, headerNames)) {
+			Emitter out = new Emitter();
+			for (int name : names) {
+				out.append("int ").append(symbols.name(name)).append(";")
+						.newline();
+			}
+			headerNames = names;
+			header = out.text();
+		}
+		StringBuilder code = new StringBuilder(header);
+		for (Unit unit : units) {
+			if (unit.node != null) {
+				for (Statement statement : unit.statements) {
+					code.append(statement.code);
+				}
+			}
+		}
+		return code.toString();
+	}
+
+	// First error in the script, or null
+	public String errorMessage() {
+		for (Unit unit : units) {
+			if (unit.error != null) {
+				return unit.error;
+			}
+		}
+		return null;
+	}
+
+	// Number of units parsed again by the last edit
+	public int reparsed() {
+		return reparsed;
+	}
+
+	public String text() {
+		return text.toString();
+	}
+
+	// Where an old unit ends once the edit is applied
+	private static int newEnd(Unit old, int editEnd, int insertedEnd, int delta) {
+		return old.end >= editEnd ? old.end + delta : insertedEnd;
+	}
+
+	// Where an edit replaced units one for one, a new unit that does not
+	// parse takes the node of the one it replaced
+	private void keepLastGood(List<Unit> fresh, int first, int last) {
+		if (fresh.size() != last - first) {
+			return;
+		}
+		for (int i = 0; i < fresh.size(); i++) {
+			Unit unit = fresh.get(i);
+			Unit old = units.get(first + i);
+			if (unit.error != null && unit.node == null) {
+				unit.node = old.node;
+				unit.statements = old.statements;
+			}
+		}
+	}
+
+	// The top level statements the passes make of node
+	private Statement[] statements(Arduino.Node node) {
+		node = compiler.optimize(node);
+		if (!(node instanceof Arduino.Sequence)) {
+			return new Statement[] { new Statement(node, symbols) };
+		}
+		// by size and get, as a view of an arena holds no children list
+		Arduino.Sequence sequence = (Arduino.Sequence) node;
+		Statement[] statements = new Statement[sequence.size()];
+		for (int i = 0; i < statements.length; i++) {
+			statements[i] = new Statement(sequence.get(i), symbols);
+		}
+		return statements;
+	}
+
+	// The code of statement, with every variable it assigns declared before
+	// it but its target when it declares that
+	private String generate(Statement statement, boolean declares) {
+		Emitter out = new Emitter();
+		Arduino.ArduinoCompiler.Generator generator = new Arduino.ArduinoCompiler.Generator(
+				out);
+		for (int s = statement.assigned.nextSetBit(0); s >= 0; s = statement.assigned
+				.nextSetBit(s + 1)) {
+			if (!declares || s != statement.target) {
+				generator.declared(symbols.name(s));
+			}
+		}
+		statement.node.accept(generator);
+		return out.text();
+	}
+
+	// Read and parse the next top level unit, or null at the end
+	private Unit nextUnit(Lexer lexer, Lexer.StatementTokens tokens) {
+		int depth = 0;
+		int start = -1;
+		while (lexer.nextStatement(tokens)) {
+			if (start < 0) {
+				start = tokens.start();
+			}
+			if (CompileCache.opensBlock(tokens)) {
+				depth++;
+			} else if (tokens.is(0, Lexer.Keyword.END)) {
+				depth--;
+			}
+			if (depth <= 0) {
+				return parseUnit(start, lexer.position());
+			}
+		}
+		return start < 0 ? null : parseUnit(start, lexer.position());
+	}
+
+	private Unit parseUnit(int start, int end) {
+		Unit unit = new Unit(start, end);
+		Parser.Context parse = parser.context(text, start, end);
+		Arduino.Sequence parsed = parse.parseSequence();
+		if (parse.failed()) {
+			unit.error = parse.errorMessage();
+		} else if (!parsed.children.isEmpty()) {
+			unit.node = parsed.children.get(0);
+		}
+		return unit;
+	}
+}
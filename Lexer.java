@@ -0,0 +1,359 @@
+import java.util.Locale;
+
+/**
+ * Single pass scanner for the Arduino language. The source is walked once and
+ * the current token is exposed as a kind plus its offsets, so no substring is
+ * created unless a caller asks for the text of a token.
+ */
+public class Lexer {
+
+	// Kinds of token the scanner produces
+	public enum Kind {
+		KEYWORD, IDENTIFIER, INTEGER, OPERATOR, PERIOD, UNKNOWN, EOF
+	}
+
+	// Reserved words, matched without regard to case
+	public enum Keyword {
+		DIGITALWRITE("digitalWrite"), ANALOGWRITE("analogWrite"), DIGITALREAD(
+				"digitalRead"), ANALOGREAD("analogRead"), SET("Set"), PINMODE(
+				"pinMode"), OF("of"), TO("to"), FROM("from"), IS("is"), INCREASING(
+				"increasing"), FOR("For"), FORLOOP("forloop"), SETUP("Setup"), LOOP(
+				"Loop"), END("End"), BREAK("Break"), CONTINUE("Continue"), RETURN(
+				"Return"), GOTO("Goto"), REMAINDER("remainder"), HIGH("HIGH"), LOW(
+				"LOW");
+
+		final String text;
+		final String folded;
+
+		Keyword(String text) {
+			this.text = text;
+			this.folded = text.toLowerCase(Locale.ROOT);
+		}
+	}
+
+	// Perfect hash of the keywords on their length and their first, middle
+	// and last characters, case folded. The multiplier is searched for when
+	// the class loads, so adding a Keyword needs no other change here.
+	private static final int MIN_KEYWORD;
+	private static final int MAX_KEYWORD;
+	private static final int SHIFT;
+	private static final int MULTIPLIER;
+	private static final Keyword[] TABLE;
+
+	static {
+		Keyword[] keywords = Keyword.values();
+		int min = Integer.MAX_VALUE;
+		int max = 0;
+		int[] hashes = new int[keywords.length];
+		for (int i = 0; i < keywords.length; i++) {
+			String s = keywords[i].folded;
+			min = Math.min(min, s.length());
+			max = Math.max(max, s.length());
+			hashes[i] = hash(s.length(), s.charAt(0), s.charAt(s.length() / 2),
+					s.charAt(s.length() - 1));
+		}
+		int bits = 32 - Integer.numberOfLeadingZeros(keywords.length * 2 - 1);
+		Keyword[] table;
+		int multiplier = 0x9E3779B1;
+		search: while (true) {
+			table = new Keyword[1 << bits];
+			for (int tries = 0; tries < 1 << 16; tries++, multiplier += 2) {
+				java.util.Arrays.fill(table, null);
+				boolean placed = true;
+				for (int i = 0; i < keywords.length && placed; i++) {
+					int slot = (hashes[i] * multiplier) >>> (32 - bits);
+					placed = table[slot] == null;
+					table[slot] = keywords[i];
+				}
+				if (placed) {
+					break search;
+				}
+			}
+			// two keywords alike in every character hashed never separate
+			if (++bits > 16) {
+				throw new IllegalStateException("no perfect hash for keywords");
+			}
+		}
+		MIN_KEYWORD = min;
+		MAX_KEYWORD = max;
+		SHIFT = 32 - bits;
+		MULTIPLIER = multiplier;
+		TABLE = table;
+	}
+
+	private static int hash(int length, char first, char middle, char last) {
+		return ((length * 31 + fold(first)) * 31 + fold(middle)) * 31
+				+ fold(last);
+	}
+
+	// Keywords are ASCII, so only A to Z fold; Character.toLowerCase would
+	// also match letters such as the Turkish dotted capital I
+	private static char fold(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	private static int slot(int hash) {
+		return (hash * MULTIPLIER) >>> SHIFT;
+	}
+
+	private final CharSequence source;
+	private final int limit;
+	private int pos;
+
+	// Current token
+	private Kind kind;
+	private Keyword keyword;
+	private int start;
+	private int end;
+	private long value;
+
+	public Lexer(CharSequence source) {
+		this(source, 0, source.length());
+	}
+
+	public Lexer(CharSequence source, int from, int to) {
+		this.source = source;
+		this.pos = from;
+		this.limit = to;
+	}
+
+	// Advance to the next token and return its kind
+	public Kind next() {
+		int p = pos;
+		while (p < limit && Character.isWhitespace(source.charAt(p))) {
+			p++;
+		}
+		start = p;
+		keyword = null;
+		value = 0;
+		if (p >= limit) {
+			kind = Kind.EOF;
+		} else {
+			char c = source.charAt(p);
+			if (c == '.') {
+				kind = Kind.PERIOD;
+				p++;
+			} else if (c >= '0' && c <= '9') {
+				long v = 0;
+				while (p < limit && (c = source.charAt(p)) >= '0' && c <= '9') {
+					// saturate so overflow can be reported by the parser
+					if (v <= Integer.MAX_VALUE) {
+						v = v * 10 + (c - '0');
+					}
+					p++;
+				}
+				value = v;
+				kind = Kind.INTEGER;
+			} else if (isWordStart(c)) {
+				while (p < limit && isWordPart(source.charAt(p))) {
+					p++;
+				}
+				keyword = lookup(source, start, p);
+				kind = keyword != null ? Kind.KEYWORD : Kind.IDENTIFIER;
+			} else if ("+-*/%()".indexOf(c) >= 0) {
+				kind = Kind.OPERATOR;
+				p++;
+			} else {
+				kind = Kind.UNKNOWN;
+				p++;
+			}
+		}
+		end = p;
+		pos = p;
+		return kind;
+	}
+
+	// Read the tokens up to and including the next period into the window.
+	// Returns false once the source is exhausted.
+	public boolean nextStatement(StatementTokens into) {
+		into.reset(source);
+		while (true) {
+			Kind k = next();
+			if (k == Kind.EOF) {
+				return into.count > 0;
+			}
+			if (k == Kind.PERIOD) {
+				if (into.count > 0) {
+					into.end = start;
+					into.terminated = true;
+					return true;
+				}
+				// skip empty statements
+				continue;
+			}
+			into.add(this);
+		}
+	}
+
+	public Kind kind() {
+		return kind;
+	}
+
+	public Keyword keyword() {
+		return keyword;
+	}
+
+	public int start() {
+		return start;
+	}
+
+	public int end() {
+		return end;
+	}
+
+	// Offset the scanner will resume from
+	public int position() {
+		return pos;
+	}
+
+	public boolean fitsInt() {
+		return value <= Integer.MAX_VALUE;
+	}
+
+	public int intValue() {
+		return (int) value;
+	}
+
+	public char op() {
+		return source.charAt(start);
+	}
+
+	public String text() {
+		return source.subSequence(start, end).toString();
+	}
+
+	public CharSequence source() {
+		return source;
+	}
+
+	// Find the keyword spelled between from and to, if any. One probe of the
+	// table, then a compare against the only keyword that could match.
+	static Keyword lookup(CharSequence source, int from, int to) {
+		int length = to - from;
+		if (length < MIN_KEYWORD || length > MAX_KEYWORD) {
+			return null;
+		}
+		Keyword k = TABLE[slot(hash(length, source.charAt(from),
+				source.charAt(from + length / 2), source.charAt(to - 1)))];
+		return k != null && k.folded.length() == length
+				&& foldedEquals(source, k.folded, from) ? k : null;
+	}
+
+	private static boolean foldedEquals(CharSequence source, String folded,
+			int from) {
+		for (int i = 0; i < folded.length(); i++) {
+			if (fold(source.charAt(from + i)) != folded.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean isWordStart(char c) {
+		return Character.isLetter(c) || c == '_';
+	}
+
+	static boolean isWordPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	/**
+	 * Reusable window over the tokens of one statement. Parallel arrays hold
+	 * the token data so filling it does not allocate once it has grown to the
+	 * longest statement seen.
+	 */
+	public static class StatementTokens {
+		CharSequence source;
+		int count;
+		int start;
+		int end;
+		boolean terminated;
+		Kind[] kinds = new Kind[8];
+		Keyword[] keywords = new Keyword[8];
+		int[] starts = new int[8];
+		int[] ends = new int[8];
+		long[] values = new long[8];
+
+		void reset(CharSequence source) {
+			this.source = source;
+			count = 0;
+			start = -1;
+			end = -1;
+			terminated = false;
+		}
+
+		void add(Lexer lexer) {
+			if (count == kinds.length) {
+				int size = count * 2;
+				kinds = java.util.Arrays.copyOf(kinds, size);
+				keywords = java.util.Arrays.copyOf(keywords, size);
+				starts = java.util.Arrays.copyOf(starts, size);
+				ends = java.util.Arrays.copyOf(ends, size);
+				values = java.util.Arrays.copyOf(values, size);
+			}
+			if (count == 0) {
+				start = lexer.start;
+			}
+			kinds[count] = lexer.kind;
+			keywords[count] = lexer.keyword;
+			starts[count] = lexer.start;
+			ends[count] = lexer.end;
+			values[count] = lexer.value;
+			end = lexer.end;
+			count++;
+		}
+
+		public int count() {
+			return count;
+		}
+
+		// Reads past the end answer EOF so callers need no bounds checks
+		public Kind kind(int i) {
+			return i < count ? kinds[i] : Kind.EOF;
+		}
+
+		public boolean is(int i, Keyword k) {
+			return i < count && keywords[i] == k;
+		}
+
+		public boolean isInt(int i) {
+			return i < count && kinds[i] == Kind.INTEGER
+					&& values[i] <= Integer.MAX_VALUE;
+		}
+
+		public boolean isName(int i) {
+			return i < count
+					&& (kinds[i] == Kind.IDENTIFIER || kinds[i] == Kind.KEYWORD);
+		}
+
+		public boolean isOp(int i, char op) {
+			return i < count && kinds[i] == Kind.OPERATOR
+					&& source.charAt(starts[i]) == op;
+		}
+
+		public int intValue(int i) {
+			return (int) values[i];
+		}
+
+		public String text(int i) {
+			return source.subSequence(starts[i], ends[i]).toString();
+		}
+
+		// Offsets of the statement, excluding the terminating period
+		public int start() {
+			return start;
+		}
+
+		public int end() {
+			return end;
+		}
+
+		public boolean terminated() {
+			return terminated;
+		}
+
+		public String statementText() {
+			return source.subSequence(start, end).toString();
+		}
+	}
+}
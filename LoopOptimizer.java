@@ -0,0 +1,474 @@
+import java.util.BitSet;
+
+/**
+ * Moves statements that do the same thing on every pass out of forLoop and
+ * Loop bodies, and unrolls short forLoops. Loops are handled innermost
+ * first, so a statement can be hoisted through several levels and a loop
+ * left small by hoisting can then be unrolled.
+ *
+ * A pinMode is hoisted when it is the only one for its pin in the body and
+ * nothing before it uses the pin; an assignment of a literal when it is the
+ * only assignment to the variable in the body and nothing before it uses
+ * the variable. Nothing is hoisted from a body with a Break, Continue,
+ * Return or Goto. Out of a forLoop they go just before the loop. Out of Loop
+ * a pinMode goes to the end of setUp and an assignment becomes a global,
+ * which needs the whole program, so Loop bodies are only changed when the
+ * pass is given a Program.
+ *
+ * A forLoop that never runs is dropped. One whose body does not use the loop
+ * variable, jump, or declare a variable is repeated in place when all of its
+ * trips fit the budget of statements, or else unrolled by the largest factor
+ * that fits, with the leftover trips after it.
+ *
+ * Names are compared by their symbol in a table kept for one apply.
+ */
+public class LoopOptimizer implements Pass {
+	private final int budget;
+
+	public LoopOptimizer() {
+		this(16);
+	}
+
+	// budget is the most statements an unrolled loop may grow to
+	public LoopOptimizer(int budget) {
+		this.budget = budget;
+	}
+
+	public Arduino.Node apply(Arduino.Node node) {
+		SymbolTable symbols = new SymbolTable();
+		if (node instanceof Arduino.Program) {
+			return program((Arduino.Program) node, symbols);
+		}
+		if (node instanceof Arduino.Sequence) {
+			return block((Arduino.Sequence) node, symbols);
+		}
+		Arduino.Sequence out = new Arduino.Sequence();
+		statement(node, out, symbols);
+		return out.size() == 1 ? out.get(0) : out;
+	}
+
+	private Arduino.Node program(Arduino.Program program, SymbolTable symbols) {
+		if (!(program.body instanceof Arduino.Sequence)) {
+			return program;
+		}
+		Arduino.Sequence body = (Arduino.Sequence) program.body;
+		Arduino.Sequence out = new Arduino.Sequence();
+		boolean changed = false;
+		for (int i = 0; i < body.size(); i++) {
+			Arduino.Node child = body.get(i);
+			int mark = out.size();
+			if (child instanceof Arduino.Loop) {
+				loop((Arduino.Loop) child, i, body, out, symbols);
+			} else {
+				statement(child, out, symbols);
+			}
+			changed |= out.size() != mark + 1 || out.get(mark) != child;
+		}
+		return changed ? new Arduino.Program(out) : program;
+	}
+
+	// The top level Loop at index at, with what it hoists added to the rest of
+	// the program. Views hand out a new node for every get, so the Loop is
+	// told apart from the rest by index, not identity.
+	private void loop(Arduino.Loop loop, int at, Arduino.Sequence program,
+			Arduino.Sequence out, SymbolTable symbols) {
+		Arduino.Sequence body = block(loop.body, symbols);
+		Scan elsewhere = new Scan(symbols);
+		for (int i = 0; i < program.size(); i++) {
+			if (i != at) {
+				program.get(i).accept(elsewhere);
+			}
+		}
+		// a setUp after the Loop would be emitted as a second setup()
+		boolean modes = elsewhere.setUps == 0 || hasSetUp(out);
+		Arduino.Sequence hoisted = new Arduino.Sequence();
+		Arduino.Sequence kept = hoist(body, new BitSet(), elsewhere.mentions,
+				modes, hoisted, symbols);
+		Arduino.Sequence pinModes = new Arduino.Sequence();
+		for (int i = 0; i < hoisted.size(); i++) {
+			if (hoisted.get(i) instanceof Arduino.pinMode) {
+				pinModes.addNode(hoisted.get(i));
+			} else {
+				// globals are all set before setup() runs
+				out.addNode(hoisted.get(i));
+			}
+		}
+		if (pinModes.size() > 0) {
+			addToSetUp(pinModes, out);
+		}
+		out.addNode(kept == loop.body ? loop : new Arduino.Loop(kept));
+	}
+
+	private static boolean hasSetUp(Arduino.Sequence block) {
+		for (int i = 0; i < block.size(); i++) {
+			if (block.get(i) instanceof Arduino.setUp) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Append statements to the last setUp already in out, or start one
+	private static void addToSetUp(Arduino.Sequence statements,
+			Arduino.Sequence out) {
+		for (int i = out.size() - 1; i >= 0; i--) {
+			if (out.get(i) instanceof Arduino.setUp) {
+				Arduino.setUp setUp = (Arduino.setUp) out.get(i);
+				Arduino.Sequence body = new Arduino.Sequence();
+				for (int j = 0; j < setUp.body.size(); j++) {
+					body.addNode(setUp.body.get(j));
+				}
+				for (int j = 0; j < statements.size(); j++) {
+					body.addNode(statements.get(j));
+				}
+				out.children.set(i, new Arduino.setUp(body));
+				return;
+			}
+		}
+		out.addNode(new Arduino.setUp(statements));
+	}
+
+	// The optimized statements of a block, or the block if none changed
+	private Arduino.Sequence block(Arduino.Sequence block, SymbolTable symbols) {
+		Arduino.Sequence out = new Arduino.Sequence();
+		boolean changed = false;
+		for (int i = 0; i < block.size(); i++) {
+			Arduino.Node child = block.get(i);
+			int mark = out.size();
+			statement(child, out, symbols);
+			changed |= out.size() != mark + 1 || out.get(mark) != child;
+		}
+		return changed ? out : block;
+	}
+
+	private void statement(Arduino.Node node, Arduino.Sequence out,
+			SymbolTable symbols) {
+		if (node instanceof Arduino.forLoop) {
+			forLoop((Arduino.forLoop) node, out, symbols);
+		} else if (node instanceof Arduino.Loop) {
+			Arduino.Loop loop = (Arduino.Loop) node;
+			Arduino.Sequence body = block(loop.body, symbols);
+			out.addNode(body == loop.body ? loop : new Arduino.Loop(body));
+		} else if (node instanceof Arduino.setUp) {
+			Arduino.setUp setUp = (Arduino.setUp) node;
+			Arduino.Sequence body = block(setUp.body, symbols);
+			out.addNode(body == setUp.body ? setUp : new Arduino.setUp(body));
+		} else {
+			out.addNode(node);
+		}
+	}
+
+	private void forLoop(Arduino.forLoop loop, Arduino.Sequence out,
+			SymbolTable symbols) {
+		// in long, as a bound far from the start overflows an int count
+		long trips = (long) loop.maxValue.n - loop.initValue.n;
+		if (trips <= 0) {
+			return;
+		}
+		int variable = symbols.symbol(loop.id);
+		BitSet before = new BitSet();
+		before.set(variable);
+		Arduino.Sequence body = hoist(block(loop.body, symbols), before,
+				new BitSet(), true, out, symbols);
+
+		Scan scan = new Scan(symbols);
+		body.accept(scan);
+		if (!scan.jumps && !scan.mentions.get(variable) && !declares(body)) {
+			int size = scan.statements;
+			if (size == 0) {
+				// everything was hoisted; there is nothing left to repeat
+				return;
+			}
+			if (trips <= budget / size) {
+				repeat(body, (int) trips, out);
+				return;
+			}
+			for (int factor = budget / size; factor >= 2; factor--) {
+				int left = (int) (trips % factor);
+				if (factor < trips && (factor + left) * size <= budget) {
+					Arduino.Sequence unrolled = new Arduino.Sequence();
+					repeat(body, factor, unrolled);
+					out.addNode(new Arduino.forLoop(loop.id, new Arduino.Number(0),
+							new Arduino.Number((int) (trips / factor)), unrolled));
+					repeat(body, left, out);
+					return;
+				}
+			}
+		}
+		out.addNode(body == loop.body ? loop : new Arduino.forLoop(loop.id,
+				loop.initValue, loop.maxValue, body));
+	}
+
+	private static void repeat(Arduino.Sequence body, int times,
+			Arduino.Sequence out) {
+		for (int t = 0; t < times; t++) {
+			for (int i = 0; i < body.size(); i++) {
+				out.addNode(body.get(i));
+			}
+		}
+	}
+
+	// Whether copies of the block would declare a variable twice in one scope
+	private static boolean declares(Arduino.Sequence block) {
+		for (int i = 0; i < block.size(); i++) {
+			Arduino.Node child = block.get(i);
+			if (child instanceof Arduino.Assign
+					|| child instanceof Arduino.remainder) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Move the invariant statements of a loop body to out, returning the rest.
+	 * before holds symbols already in use on entry to the body; assignments
+	 * to those in outside are left alone as well, and pinModes unless modes.
+	 */
+	private static Arduino.Sequence hoist(Arduino.Sequence body,
+			BitSet before, BitSet outside, boolean modes, Arduino.Sequence out,
+			SymbolTable symbols) {
+		Scan scan = new Scan(symbols);
+		body.accept(scan);
+		if (scan.jumps) {
+			return body;
+		}
+		BitSet seen = (BitSet) before.clone();
+		Arduino.Sequence kept = new Arduino.Sequence();
+		for (int i = 0; i < body.size(); i++) {
+			Arduino.Node child = body.get(i);
+			if ((modes || !(child instanceof Arduino.pinMode))
+					&& invariant(child, scan, seen, outside, symbols)) {
+				out.addNode(child);
+			} else {
+				kept.addNode(child);
+				Scan uses = new Scan(symbols);
+				child.accept(uses);
+				seen.or(uses.mentions);
+			}
+		}
+		return kept.size() == body.size() ? body : kept;
+	}
+
+	private static boolean invariant(Arduino.Node node, Scan body,
+			BitSet seen, BitSet outside, SymbolTable symbols) {
+		if (node instanceof Arduino.pinMode) {
+			int pin = symbols.symbol(((Arduino.pinMode) node).predicate);
+			return body.modes.get(pin) && !body.modesAgain.get(pin)
+					&& !body.assigned.get(pin) && !seen.get(pin);
+		}
+		if (node instanceof Arduino.Assign) {
+			Arduino.Assign assign = (Arduino.Assign) node;
+			int name = symbols.symbol(assign.variable);
+			return assign.value instanceof Arduino.Number
+					&& body.assigned.get(name) && !body.assignedAgain.get(name)
+					&& !seen.get(name) && !outside.get(name);
+		}
+		return false;
+	}
+
+	// The symbols a part of the tree mentions, assigns and sets the mode of,
+	// and of those which it assigns or sets the mode of more than once
+	static class Scan implements Arduino.Visitor<Void> {
+		private final SymbolTable symbols;
+		final BitSet mentions = new BitSet();
+		final BitSet assigned = new BitSet();
+		final BitSet assignedAgain = new BitSet();
+		final BitSet modes = new BitSet();
+		final BitSet modesAgain = new BitSet();
+		boolean jumps;
+		int statements;
+		int setUps;
+
+		Scan(SymbolTable symbols) {
+			this.symbols = symbols;
+		}
+
+		private int mention(Arduino.Id id) {
+			int symbol = symbols.symbol(id);
+			mentions.set(symbol);
+			return symbol;
+		}
+
+		private static void add(BitSet once, BitSet again, int symbol) {
+			if (once.get(symbol)) {
+				again.set(symbol);
+			} else {
+				once.set(symbol);
+			}
+		}
+
+		@Override
+		public Void visit(Arduino.Program program) {
+			program.body.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Loop loop) {
+			statements++;
+			loop.body.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.setUp setUp) {
+			statements++;
+			setUps++;
+			setUp.body.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.forLoop forLoop) {
+			statements++;
+			add(assigned, assignedAgain, mention(forLoop.id));
+			forLoop.body.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Assign assign) {
+			statements++;
+			add(assigned, assignedAgain, mention(assign.variable));
+			assign.value.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.remainder remainder) {
+			statements++;
+			if (remainder.id instanceof Arduino.Id) {
+				add(assigned, assignedAgain, mention((Arduino.Id) remainder.id));
+			}
+			remainder.firstNumber.accept(this);
+			remainder.secNumber.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.pinMode pinMode) {
+			statements++;
+			add(modes, modesAgain, mention(pinMode.predicate));
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.digitalWrite digitalWrite) {
+			statements++;
+			mention(digitalWrite.predicate);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.analogWrite analogWrite) {
+			statements++;
+			mention(analogWrite.predicate);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.digitalRead digitalRead) {
+			statements++;
+			mention(digitalRead.id);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.analogRead analogRead) {
+			statements++;
+			mention(analogRead.id);
+			return null;
+		}
+
+		private Void jump() {
+			statements++;
+			jumps = true;
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Break break1) {
+			return jump();
+		}
+
+		@Override
+		public Void visit(Arduino.Continue continue1) {
+			return jump();
+		}
+
+		@Override
+		public Void visit(Arduino.Return return1) {
+			return jump();
+		}
+
+		@Override
+		public Void visit(Arduino.Goto goto1) {
+			return jump();
+		}
+
+		@Override
+		public Void visit(Arduino.Branch branch) {
+			// not parsed yet; treat it as something that may go anywhere
+			return jump();
+		}
+
+		@Override
+		public Void visit(Arduino.Id id) {
+			mention(id);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Operator op) {
+			op.left.accept(this);
+			op.right.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Plus op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		@Override
+		public Void visit(Arduino.Minus op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		@Override
+		public Void visit(Arduino.Times op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		@Override
+		public Void visit(Arduino.Divide op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		@Override
+		public Void visit(Arduino.Number num) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Type type) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.HIGH high) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.LOW low) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.IOvalue iOvalue) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/**
+ * A pass over the tree that dispatches on NodeBase.kind with a switch rather
+ * than through accept and a Visitor. Each node costs a table jump and one
+ * virtual call, where accept and visit are two interface calls whose sites
+ * are shared by every Visitor and so cannot be inlined once a program goes
+ * through more than two passes.
+ *
+ * By default every node combines the results of its children, in order, and
+ * leaves give otherwise(); a pass only overrides the nodes it cares about.
+ * Unlike Sequence.accept, a Sequence gives the combined results of its
+ * statements. visitor() adapts a pass for code written against Visitor.
+ */
+public abstract class NodeSwitch<T> {
+
+	public T apply(Arduino.Node node) {
+		Arduino.NodeBase n = (Arduino.NodeBase) node;
+		switch (n.kind) {
+		case Arduino.NodeBase.PROGRAM:
+			return on((Arduino.Program) n);
+		case Arduino.NodeBase.SEQUENCE:
+			return on((Arduino.Sequence) n);
+		case Arduino.NodeBase.ID:
+			return on((Arduino.Id) n);
+		case Arduino.NodeBase.IO_VALUE:
+			return on((Arduino.IOvalue) n);
+		case Arduino.NodeBase.TYPE:
+			return on((Arduino.Type) n);
+		case Arduino.NodeBase.ASSIGN:
+			return on((Arduino.Assign) n);
+		case Arduino.NodeBase.BRANCH:
+			return on((Arduino.Branch) n);
+		case Arduino.NodeBase.LOOP:
+			return on((Arduino.Loop) n);
+		case Arduino.NodeBase.FOR_LOOP:
+			return on((Arduino.forLoop) n);
+		case Arduino.NodeBase.SET_UP:
+			return on((Arduino.setUp) n);
+		case Arduino.NodeBase.PIN_MODE:
+			return on((Arduino.pinMode) n);
+		case Arduino.NodeBase.DIGITAL_WRITE:
+			return on((Arduino.digitalWrite) n);
+		case Arduino.NodeBase.ANALOG_WRITE:
+			return on((Arduino.analogWrite) n);
+		case Arduino.NodeBase.DIGITAL_READ:
+			return on((Arduino.digitalRead) n);
+		case Arduino.NodeBase.ANALOG_READ:
+			return on((Arduino.analogRead) n);
+		case Arduino.NodeBase.BREAK:
+			return on((Arduino.Break) n);
+		case Arduino.NodeBase.CONTINUE:
+			return on((Arduino.Continue) n);
+		case Arduino.NodeBase.RETURN:
+			return on((Arduino.Return) n);
+		case Arduino.NodeBase.GOTO:
+			return on((Arduino.Goto) n);
+		case Arduino.NodeBase.REMAINDER:
+			return on((Arduino.remainder) n);
+		case Arduino.NodeBase.HIGH_VALUE:
+			return on((Arduino.HIGH) n);
+		case Arduino.NodeBase.LOW_VALUE:
+			return on((Arduino.LOW) n);
+		case Arduino.NodeBase.NUMBER:
+			return on((Arduino.Number) n);
+		case Arduino.NodeBase.OPERATOR:
+			return on((Arduino.Operator) n);
+		case Arduino.NodeBase.PLUS:
+			return on((Arduino.Plus) n);
+		case Arduino.NodeBase.MINUS:
+			return on((Arduino.Minus) n);
+		case Arduino.NodeBase.TIMES:
+			return on((Arduino.Times) n);
+		case Arduino.NodeBase.DIVIDE:
+			return on((Arduino.Divide) n);
+		default:
+			throw new IllegalStateException("bad node kind " + n.kind);
+		}
+	}
+
+	// Result for a leaf, and for any node a pass leaves to the defaults
+	protected T otherwise(Arduino.Node node) {
+		return null;
+	}
+
+	// Fold the result of the next child into those before it
+	protected T combine(T before, T next) {
+		return next;
+	}
+
+	private T apply(Arduino.Node first, Arduino.Node second) {
+		return combine(apply(first), apply(second));
+	}
+
+	protected T on(Arduino.Program program) {
+		return apply(program.body);
+	}
+
+	protected T on(Arduino.Sequence sequence) {
+		int size = sequence.size();
+		if (size == 0) {
+			return otherwise(sequence);
+		}
+		T result = apply(sequence.get(0));
+		for (int i = 1; i < size; i++) {
+			result = combine(result, apply(sequence.get(i)));
+		}
+		return result;
+	}
+
+	protected T on(Arduino.Loop loop) {
+		return apply(loop.body);
+	}
+
+	protected T on(Arduino.setUp setUp) {
+		return apply(setUp.body);
+	}
+
+	protected T on(Arduino.forLoop forLoop) {
+		return combine(apply(forLoop.id, forLoop.initValue),
+				apply(forLoop.maxValue, forLoop.body));
+	}
+
+	protected T on(Arduino.Branch branch) {
+		T result = apply(branch.predicate, branch.ifBranch);
+		return branch.elseBranch == null ? result : combine(result,
+				apply(branch.elseBranch));
+	}
+
+	protected T on(Arduino.Assign assign) {
+		return apply(assign.variable, assign.value);
+	}
+
+	protected T on(Arduino.remainder remainder) {
+		return combine(apply(remainder.id, remainder.firstNumber),
+				apply(remainder.secNumber));
+	}
+
+	protected T on(Arduino.pinMode pinMode) {
+		return apply(pinMode.predicate, pinMode.value);
+	}
+
+	protected T on(Arduino.digitalWrite digitalWrite) {
+		return apply(digitalWrite.predicate, digitalWrite.value);
+	}
+
+	protected T on(Arduino.analogWrite analogWrite) {
+		return apply(analogWrite.predicate, analogWrite.value);
+	}
+
+	protected T on(Arduino.digitalRead digitalRead) {
+		return apply(digitalRead.id);
+	}
+
+	protected T on(Arduino.analogRead analogRead) {
+		return apply(analogRead.id);
+	}
+
+	protected T on(Arduino.Break break1) {
+		return apply(break1.syntax);
+	}
+
+	protected T on(Arduino.Continue continue1) {
+		return apply(continue1.variable);
+	}
+
+	protected T on(Arduino.Return return1) {
+		return apply(return1.variable);
+	}
+
+	protected T on(Arduino.Goto goto1) {
+		return apply(goto1.variable);
+	}
+
+	// Plus, Minus, Times and Divide come here unless a pass says otherwise
+	protected T on(Arduino.Operator op) {
+		return apply(op.left, op.right);
+	}
+
+	protected T on(Arduino.Plus op) {
+		return on((Arduino.Operator) op);
+	}
+
+	protected T on(Arduino.Minus op) {
+		return on((Arduino.Operator) op);
+	}
+
+	protected T on(Arduino.Times op) {
+		return on((Arduino.Operator) op);
+	}
+
+	protected T on(Arduino.Divide op) {
+		return on((Arduino.Operator) op);
+	}
+
+	protected T on(Arduino.Id id) {
+		return otherwise(id);
+	}
+
+	protected T on(Arduino.Number num) {
+		return otherwise(num);
+	}
+
+	protected T on(Arduino.Type type) {
+		return otherwise(type);
+	}
+
+	protected T on(Arduino.HIGH high) {
+		return otherwise(high);
+	}
+
+	protected T on(Arduino.LOW low) {
+		return otherwise(low);
+	}
+
+	protected T on(Arduino.IOvalue iOvalue) {
+		return otherwise(iOvalue);
+	}
+
+	// This pass as a Visitor; every visit goes through apply
+	public Arduino.Visitor<T> visitor() {
+		return new Arduino.Visitor<T>() {
+			public T visit(Arduino.Loop loop) {
+				return apply(loop);
+			}
+
+			public T visit(Arduino.Branch branch) {
+				return apply(branch);
+			}
+
+			public T visit(Arduino.Assign assign) {
+				return apply(assign);
+			}
+
+			public T visit(Arduino.Id id) {
+				return apply(id);
+			}
+
+			public T visit(Arduino.Operator op) {
+				return apply(op);
+			}
+
+			public T visit(Arduino.Plus op) {
+				return apply(op);
+			}
+
+			public T visit(Arduino.Minus op) {
+				return apply(op);
+			}
+
+			public T visit(Arduino.Times op) {
+				return apply(op);
+			}
+
+			public T visit(Arduino.Divide op) {
+				return apply(op);
+			}
+
+			public T visit(Arduino.Number num) {
+				return apply(num);
+			}
+
+			public T visit(Arduino.Type type) {
+				return apply(type);
+			}
+
+			public T visit(Arduino.HIGH high) {
+				return apply(high);
+			}
+
+			public T visit(Arduino.LOW low) {
+				return apply(low);
+			}
+
+			public T visit(Arduino.setUp setUp) {
+				return apply(setUp);
+			}
+
+			public T visit(Arduino.pinMode pinMode) {
+				return apply(pinMode);
+			}
+
+			public T visit(Arduino.digitalWrite digitalWrite) {
+				return apply(digitalWrite);
+			}
+
+			public T visit(Arduino.analogWrite analogWrite) {
+				return apply(analogWrite);
+			}
+
+			public T visit(Arduino.digitalRead digitalRead) {
+				return apply(digitalRead);
+			}
+
+			public T visit(Arduino.analogRead analogRead) {
+				return apply(analogRead);
+			}
+
+			public T visit(Arduino.Program program) {
+				return apply(program);
+			}
+
+			public T visit(Arduino.forLoop forLoop) {
+				return apply(forLoop);
+			}
+
+			public T visit(Arduino.IOvalue iOvalue) {
+				return apply(iOvalue);
+			}
+
+			public T visit(Arduino.Break break1) {
+				return apply(break1);
+			}
+
+			public T visit(Arduino.Continue continue1) {
+				return apply(continue1);
+			}
+
+			public T visit(Arduino.Return return1) {
+				return apply(return1);
+			}
+
+			public T visit(Arduino.Goto goto1) {
+				return apply(goto1);
+			}
+
+			public T visit(Arduino.remainder remainder) {
+				return apply(remainder);
+			}
+		};
+	}
+}
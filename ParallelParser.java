@@ -0,0 +1,332 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses a large script on a fork-join pool. A pre-scan that only looks for
+ * periods and the first words of statements finds the top level units (a
+ * statement, or a block up to its End) and the units in the bodies of top
+ * level Setup and Loop blocks, where most of a script usually is. Runs of
+ * neighbouring units are parsed as separate pieces, then stitched back into
+ * one Program in source order with their diagnostics passed on in that order
+ * too, so the outcome is that of Parser.parseProgram.
+ *
+ * Where blocks do not nest cleanly, because an End does not close the
+ * innermost block or a block is left open, the recovery of the sequential
+ * parser decides what belongs to which block, so such scripts, scripts
+ * nested close to Parser.MAX_DEPTH, scripts too small to be worth splitting
+ * and pools of one thread parse sequentially. Each piece interns its own
+ * names, so mentions in different pieces do not share an Id.
+ */
+public class ParallelParser {
+	// Smallest piece worth handing to another thread, in chars
+	static final int MIN_PIECE = 8192;
+
+	private final Parser parser;
+	private final ForkJoinPool pool;
+
+	public ParallelParser() {
+		this(new Parser(), ForkJoinPool.commonPool());
+	}
+
+	public ParallelParser(Parser parser, ForkJoinPool pool) {
+		this.parser = parser;
+		this.pool = pool;
+	}
+
+	// Outcome of a parse, as Parser.Context reports it
+	public static class Result {
+		public final Arduino.Program program;
+		public final int errors;
+		public final String errorMessage;
+		// pieces parsed apart; 1 when the script was parsed sequentially
+		public final int pieces;
+
+		Result(Arduino.Program program, int errors, String errorMessage,
+				int pieces) {
+			this.program = program;
+			this.errors = errors;
+			this.errorMessage = errorMessage;
+			this.pieces = pieces;
+		}
+
+		public boolean failed() {
+			return errors > 0;
+		}
+	}
+
+	public Result parse(CharSequence source) {
+		return parse(source, Diagnostics.NONE);
+	}
+
+	public Result parse(CharSequence source, Diagnostics diagnostics) {
+		int pieceSize = Math.max(MIN_PIECE,
+				source.length() / (4 * pool.getParallelism()));
+		List<Unit> units = pool.getParallelism() < 2
+				|| source.length() < 2 * pieceSize ? null : scan(source);
+		if (units == null) {
+			Parser.Context parse = parser.context(source, diagnostics);
+			return new Result(parse.parseProgram(), parse.errors(),
+					parse.errorMessage(), 1);
+		}
+
+		boolean record = diagnostics != Diagnostics.NONE;
+		List<Part> parts = new ArrayList<Part>();
+		Part run = null;
+		for (Unit unit : units) {
+			if (unit.block != null && unit.end - unit.start >= pieceSize) {
+				Part block = new Part(unit.block, unit.start, unit.headerEnd);
+				int from = -1;
+				for (int i = 0; i < unit.bodyCount; i += 2) {
+					if (from < 0) {
+						from = unit.body[i];
+					}
+					if (unit.body[i + 1] - from >= pieceSize
+							|| i + 2 == unit.bodyCount) {
+						block.pieces.add(new Piece(source, from,
+								unit.body[i + 1], record));
+						from = -1;
+					}
+				}
+				parts.add(block);
+				run = null;
+				continue;
+			}
+			if (run == null) {
+				run = new Part(null, 0, 0);
+				run.pieces.add(new Piece(source, unit.start, unit.end, record));
+				parts.add(run);
+			} else {
+				Piece last = run.pieces.get(run.pieces.size() - 1);
+				if (last.to - last.from >= pieceSize) {
+					run.pieces.add(new Piece(source, unit.start, unit.end, record));
+				} else {
+					last.to = unit.end;
+				}
+			}
+		}
+
+		List<Piece> pieces = new ArrayList<Piece>();
+		for (Part part : parts) {
+			for (Piece piece : part.pieces) {
+				pool.execute(piece);
+				pieces.add(piece);
+			}
+		}
+		for (Piece piece : pieces) {
+			piece.join();
+		}
+
+		// stitch the pieces together in source order
+		Arduino.Sequence sequence = new Arduino.Sequence();
+		int errors = 0;
+		String message = null;
+		for (Part part : parts) {
+			Arduino.Sequence into = sequence;
+			if (part.block != null) {
+				// the parser traces a block before anything in its body
+				diagnostics.trace(part.block == Lexer.Keyword.SETUP ? "setUp"
+						: "Loop", part.headerStart, part.headerEnd);
+				into = new Arduino.Sequence();
+			}
+			for (Piece piece : part.pieces) {
+				if (piece.events != null) {
+					piece.events.replay(diagnostics);
+				}
+				errors += piece.errors;
+				if (message == null) {
+					message = piece.message;
+				}
+				for (int i = 0; i < piece.sequence.size(); i++) {
+					into.addNode(piece.sequence.get(i));
+				}
+			}
+			if (part.block == Lexer.Keyword.SETUP) {
+				sequence.addNode(new Arduino.setUp(into));
+			} else if (part.block == Lexer.Keyword.LOOP) {
+				sequence.addNode(new Arduino.Loop(into));
+			}
+		}
+		return new Result(new Arduino.Program(sequence), errors, message,
+				pieces.size());
+	}
+
+	// A run of neighbouring units parsed apart from the rest
+	class Piece extends RecursiveAction {
+		final CharSequence source;
+		final int from;
+		int to;
+		Diagnostics.Collector events;
+		Arduino.Sequence sequence;
+		int errors;
+		String message;
+
+		Piece(CharSequence source, int from, int to, boolean record) {
+			this.source = source;
+			this.from = from;
+			this.to = to;
+			this.events = record ? new Diagnostics.Collector() : null;
+		}
+
+		@Override
+		protected void compute() {
+			Parser.Context parse = parser.context(source, from, to,
+					events != null ? events : Diagnostics.NONE);
+			sequence = parse.parseSequence();
+			errors = parse.errors();
+			message = parse.errorMessage();
+		}
+	}
+
+	// Pieces whose statements go straight into the program, or into the body
+	// of a top level Setup or Loop when block is set
+	static class Part {
+		final Lexer.Keyword block;
+		final int headerStart;
+		final int headerEnd;
+		final List<Piece> pieces = new ArrayList<Piece>();
+
+		Part(Lexer.Keyword block, int headerStart, int headerEnd) {
+			this.block = block;
+			this.headerStart = headerStart;
+			this.headerEnd = headerEnd;
+		}
+	}
+
+	// A top level unit; a Setup or Loop also has the units of its body as
+	// start and end pairs
+	static class Unit {
+		final int start;
+		int end;
+		Lexer.Keyword block;
+		int headerEnd;
+		int[] body;
+		int bodyCount;
+
+		Unit(int start) {
+			this.start = start;
+		}
+
+		void addBody(int start, int end) {
+			if (body == null) {
+				body = new int[32];
+			} else if (bodyCount == body.length) {
+				body = Arrays.copyOf(body, bodyCount * 2);
+			}
+			body[bodyCount++] = start;
+			body[bodyCount++] = end;
+		}
+	}
+
+	/**
+	 * The top level units of source, or null where the blocks do not nest
+	 * cleanly. Only the first word of a statement, and the second of an End,
+	 * is looked at; the rest is skipped up to the period.
+	 */
+	static List<Unit> scan(CharSequence source) {
+		List<Unit> units = new ArrayList<Unit>();
+		Lexer.Keyword[] open = new Lexer.Keyword[8];
+		int depth = 0;
+		Unit unit = null;
+		int bodyStart = -1;
+		int length = source.length();
+		int p = 0;
+		while (true) {
+			while (p < length && (source.charAt(p) == '.' || Character
+					.isWhitespace(source.charAt(p)))) {
+				p++;
+			}
+			if (p >= length) {
+				break;
+			}
+			int start = p;
+			int word = wordEnd(source, p, length);
+			Lexer.Keyword first = word > p ? Lexer.lookup(source, p, word) : null;
+			int period = period(source, word, length);
+			int end = period < length ? period + 1 : length;
+			p = end;
+
+			int before = depth;
+			if (first == Lexer.Keyword.END) {
+				int second = skipSpace(source, word, period);
+				int secondEnd = wordEnd(source, second, period);
+				Lexer.Keyword closing = secondEnd > second
+						&& skipSpace(source, secondEnd, period) == period ? Lexer
+						.lookup(source, second, secondEnd) : null;
+				if (depth == 0 || closing != open[depth - 1]) {
+					return null;
+				}
+				depth--;
+			} else {
+				Lexer.Keyword opens = null;
+				if (first == Lexer.Keyword.FOR) {
+					opens = Lexer.Keyword.FORLOOP;
+				} else if ((first == Lexer.Keyword.SETUP || first == Lexer.Keyword.LOOP)
+						&& skipSpace(source, word, period) == period) {
+					opens = first;
+				}
+				if (opens != null) {
+					if (depth + 1 == Parser.MAX_DEPTH) {
+						// a piece would count its depth from the body
+						return null;
+					}
+					if (depth == open.length) {
+						open = Arrays.copyOf(open, depth * 2);
+					}
+					open[depth++] = opens;
+				}
+			}
+
+			if (before == 0) {
+				bodyStart = -1;
+				unit = new Unit(start);
+				units.add(unit);
+				if (depth == 1 && open[0] != Lexer.Keyword.FORLOOP) {
+					unit.block = open[0];
+					unit.headerEnd = period;
+				}
+			} else if (before == 1 && depth > 0) {
+				bodyStart = start;
+			}
+			if (unit.block != null && depth == 1 && bodyStart >= 0) {
+				unit.addBody(bodyStart, end);
+				bodyStart = -1;
+			}
+			if (depth == 0) {
+				unit.end = end;
+			}
+		}
+		return depth == 0 ? units : null;
+	}
+
+	// Offset of the next period, or limit; a String is searched by indexOf
+	private static int period(CharSequence source, int p, int limit) {
+		if (source instanceof String) {
+			int at = ((String) source).indexOf('.', p);
+			return at < 0 ? limit : at;
+		}
+		while (p < limit && source.charAt(p) != '.') {
+			p++;
+		}
+		return p;
+	}
+
+	static int wordEnd(CharSequence source, int p, int limit) {
+		if (p < limit && Lexer.isWordStart(source.charAt(p))) {
+			p++;
+			while (p < limit && Lexer.isWordPart(source.charAt(p))) {
+				p++;
+			}
+		}
+		return p;
+	}
+
+	static int skipSpace(CharSequence source, int p, int limit) {
+		while (p < limit && Character.isWhitespace(source.charAt(p))) {
+			p++;
+		}
+		return p;
+	}
+}
@@ -0,0 +1,503 @@
+/**
+ * Recursive descent parser for the Arduino language. Statements are read one
+ * window at a time from the lexer; Setup, Loop and For blocks recurse into
+ * parseBlock which collects their bodies directly, so every token is visited
+ * once and the tree is only as deep as the blocks are nested.
+ *
+ * Recognized statements and errors go to a Diagnostics sink. A bad statement
+ * is reported and skipped, and an End that closes an outer block also closes
+ * any block left open inside it, so one parse reports every error.
+ *
+ * Whatever the input, a parse takes time linear in its length, and stack
+ * bounded by MAX_DEPTH nested blocks and by MAX_EXPRESSION factors in an
+ * expression, parenthesized and negated ones included; that also bounds the
+ * depth of the tree the passes and the generator recurse over. A block nested
+ * deeper is reported and its body skipped up to its End without recursing; a
+ * longer expression is an error.
+ *
+ * A Parser holds no state of its own and may be shared between threads; the
+ * state of each parse lives in a Context created for that call.
+ */
+public class Parser {
+	static final int MAX_DEPTH = 128;
+	static final int MAX_EXPRESSION = 256;
+
+	private final CompileCache cache;
+
+	public Parser() {
+		this(null);
+	}
+
+	// Statements inside blocks are looked up in the cache before parsing
+	public Parser(CompileCache cache) {
+		this.cache = cache;
+	}
+
+	public Arduino.Program parseProgram(CharSequence source) {
+		return context(source).parseProgram();
+	}
+
+	public Arduino.Sequence parseSequence(CharSequence source) {
+		return context(source).parseSequence();
+	}
+
+	// Start a parse whose outcome the caller wants to inspect
+	public Context context(CharSequence source) {
+		return context(source, Diagnostics.NONE);
+	}
+
+	public Context context(CharSequence source, Diagnostics diagnostics) {
+		return new Context(new Lexer(source), diagnostics);
+	}
+
+	// Start a parse of the part of source between from and to
+	public Context context(CharSequence source, int from, int to) {
+		return context(source, from, to, Diagnostics.NONE);
+	}
+
+	public Context context(CharSequence source, int from, int to,
+			Diagnostics diagnostics) {
+		return new Context(new Lexer(source, from, to), diagnostics);
+	}
+
+	// State of a single parse
+	public class Context {
+		private final Lexer lexer;
+		private final Diagnostics diagnostics;
+		private final Lexer.StatementTokens tokens = new Lexer.StatementTokens();
+		// every mention of a name in this parse shares one Id
+		private final SymbolTable names = new SymbolTable();
+		private int errors;
+		private String message;
+		// End keywords of the blocks being parsed, innermost last
+		private Lexer.Keyword[] open = new Lexer.Keyword[8];
+		private int depth;
+		// the current window still has to be handled by an enclosing block
+		private boolean pushedBack;
+		// next token of an expression being parsed, and how many more
+		// factors it may have
+		private int pos;
+		private int budget;
+		// what a named parse reports to CompileMetrics
+		private String name;
+		private final int from;
+		private long nodes;
+		private long statements;
+		private long tokenCount;
+		private long lexCalls;
+		private long lexSampled;
+		private long lexNanos;
+
+		Context(Lexer lexer, Diagnostics diagnostics) {
+			this.lexer = lexer;
+			this.diagnostics = diagnostics;
+			this.from = lexer.position();
+		}
+
+		// Report this parse to CompileMetrics under the name of its source
+		public Context named(String name) {
+			this.name = name;
+			return this;
+		}
+
+		// Parse every top level statement in the source
+		public Arduino.Sequence parseSequence() {
+			if (name == null) {
+				return parseStatements();
+			}
+			CompileMetrics.ParseEvent event = new CompileMetrics.ParseEvent();
+			event.begin();
+			long begin = System.nanoTime();
+			Arduino.Sequence sequence = parseStatements();
+			long lexed = lexSampled == 0 ? 0 : lexNanos * lexCalls / lexSampled;
+			CompileMetrics.REGISTRY.parsed(event, name, System.nanoTime()
+					- begin, lexed, statements, nodes, tokenCount,
+					lexer.position() - from, errors);
+			return sequence;
+		}
+
+		public Arduino.Program parseProgram() {
+			// counted before a named parse reports
+			nodes++;
+			return new Arduino.Program(parseSequence());
+		}
+
+		private Arduino.Sequence parseStatements() {
+			Arduino.Sequence sequence = made(new Arduino.Sequence());
+			while (advance()) {
+				if (tokens.is(0, Lexer.Keyword.END)) {
+					error();
+				} else {
+					addStatement(sequence);
+				}
+			}
+			return sequence;
+		}
+
+		public boolean failed() {
+			return errors > 0;
+		}
+
+		public int errors() {
+			return errors;
+		}
+
+		// Message for the first error found, if any
+		public String errorMessage() {
+			return message;
+		}
+
+		private boolean advance() {
+			if (pushedBack) {
+				pushedBack = false;
+				return true;
+			}
+			boolean more;
+			if (name != null && lexCalls++ % CompileMetrics.LEX_SAMPLE == 0) {
+				long begin = System.nanoTime();
+				more = lexer.nextStatement(tokens);
+				lexNanos += System.nanoTime() - begin;
+				lexSampled++;
+			} else {
+				more = lexer.nextStatement(tokens);
+			}
+			if (more) {
+				statements++;
+				tokenCount += tokens.count();
+			}
+			return more;
+		}
+
+		private <N extends Arduino.Node> N made(N node) {
+			nodes++;
+			return node;
+		}
+
+		// Parse statements until the End statement closing the block
+		private Arduino.Sequence parseBlock(Lexer.Keyword end) {
+			int headerStart = tokens.start();
+			int headerEnd = tokens.end();
+			Arduino.Sequence body = made(new Arduino.Sequence());
+			if (depth == MAX_DEPTH) {
+				error("Error @ blocks nested deeper than " + MAX_DEPTH,
+						headerStart, headerEnd);
+				skipBlock();
+				return body;
+			}
+			if (depth == open.length) {
+				open = java.util.Arrays.copyOf(open, depth * 2);
+			}
+			open[depth++] = end;
+			while (true) {
+				if (!advance()) {
+					error("Error @ missing End " + end.text, headerStart,
+							headerEnd);
+					break;
+				}
+				if (tokens.is(0, Lexer.Keyword.END)) {
+					Lexer.Keyword closing = tokens.count() == 2 ? tokens.keywords[1]
+							: null;
+					if (closing == end) {
+						break;
+					}
+					if (closesOuter(closing)) {
+						error("Error @ missing End " + end.text, headerStart,
+								headerEnd);
+						pushedBack = true;
+						break;
+					}
+					error();
+				} else {
+					addStatement(body);
+				}
+			}
+			depth--;
+			return body;
+		}
+
+		// Pass over a block body up to the End that balances its header,
+		// counting nested headers instead of parsing them
+		private void skipBlock() {
+			int nested = 1;
+			while (nested > 0 && advance()) {
+				Lexer.Keyword first = tokens.count() > 0 ? tokens.keywords[0]
+						: null;
+				if (first == Lexer.Keyword.END) {
+					nested--;
+				} else if (first == Lexer.Keyword.FOR
+						|| (first == Lexer.Keyword.SETUP || first == Lexer.Keyword.LOOP)
+						&& tokens.count() == 1) {
+					nested++;
+				}
+			}
+		}
+
+		private boolean closesOuter(Lexer.Keyword closing) {
+			for (int i = depth - 2; i >= 0; i--) {
+				if (open[i] == closing) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void addStatement(Arduino.Sequence sequence) {
+			boolean cached = cache != null && depth > 0
+					&& !CompileCache.opensBlock(tokens);
+			Arduino.Node node = cached ? cache.lookup(tokens) : null;
+			if (node == null) {
+				node = parseStatement();
+				if (cached && node != null) {
+					cache.store(tokens, node);
+				}
+			}
+			if (node != null) {
+				sequence.addNode(node);
+			}
+		}
+
+		// Parse the statement in the current window, recursing for blocks
+		private Arduino.Node parseStatement() {
+			Lexer.Keyword first = tokens.count() > 0 ? tokens.keywords[0] : null;
+			if (first == null) {
+				return parseAssign();
+			}
+			switch (first) {
+			// digital Write statement must contain HIGH or LOW
+			case DIGITALWRITE:
+				trace("digitalWrite");
+				if (tokens.count() == 4 && tokens.is(2, Lexer.Keyword.TO)
+						&& tokens.isName(3)) {
+					if (tokens.is(1, Lexer.Keyword.LOW)) {
+						return made(new Arduino.digitalWrite(id(3),
+								made(new Arduino.LOW())));
+					} else if (tokens.is(1, Lexer.Keyword.HIGH)) {
+						return made(new Arduino.digitalWrite(id(3),
+								made(new Arduino.HIGH())));
+					}
+				}
+				return error();
+			// analog Write statement must contain an int
+			case ANALOGWRITE:
+				trace("analogWrite");
+				if (tokens.count() == 4 && tokens.isInt(1)
+						&& tokens.is(2, Lexer.Keyword.TO) && tokens.isName(3)) {
+					return made(new Arduino.analogWrite(id(3), number(1)));
+				}
+				return error();
+			// pinMode statement
+			case SET:
+				trace("pinMode");
+				if (tokens.count() == 6 && tokens.is(1, Lexer.Keyword.PINMODE)
+						&& tokens.is(2, Lexer.Keyword.OF) && tokens.isName(3)
+						&& tokens.is(4, Lexer.Keyword.TO) && tokens.isName(5)) {
+					return made(new Arduino.pinMode(id(3),
+							made(new Arduino.IOvalue(tokens.text(5)))));
+				}
+				return error();
+			// digital Read statement
+			case DIGITALREAD:
+				trace("digitalRead");
+				if (tokens.count() == 3 && tokens.is(1, Lexer.Keyword.FROM)
+						&& tokens.isName(2)) {
+					return made(new Arduino.digitalRead(id(2)));
+				}
+				return error();
+			// analog Read statement
+			case ANALOGREAD:
+				trace("analogRead");
+				if (tokens.count() == 4 && tokens.is(2, Lexer.Keyword.FROM)
+						&& tokens.isName(3)) {
+					return made(new Arduino.analogRead(id(3)));
+				}
+				return error();
+			// For x is 0 increasing to 100.
+			case FOR:
+				trace("forLoop");
+				if (tokens.count() == 7 && tokens.isName(1)
+						&& tokens.is(2, Lexer.Keyword.IS) && tokens.isInt(3)
+						&& tokens.is(4, Lexer.Keyword.INCREASING)
+						&& tokens.is(5, Lexer.Keyword.TO) && tokens.isInt(6)) {
+					Arduino.Id id = id(1);
+					Arduino.Number init = number(3);
+					Arduino.Number max = number(6);
+					return made(new Arduino.forLoop(id, init, max,
+							parseBlock(Lexer.Keyword.FORLOOP)));
+				}
+				// still consume the body so its End does not look stray
+				error();
+				parseBlock(Lexer.Keyword.FORLOOP);
+				return null;
+			// Set Up statement
+			case SETUP:
+				trace("setUp");
+				if (tokens.count() == 1) {
+					return made(new Arduino.setUp(
+							parseBlock(Lexer.Keyword.SETUP)));
+				}
+				return error();
+			// Loop statement
+			case LOOP:
+				trace("Loop");
+				if (tokens.count() == 1) {
+					return made(new Arduino.Loop(
+							parseBlock(Lexer.Keyword.LOOP)));
+				}
+				return error();
+			case BREAK:
+				trace("Break");
+				if (tokens.count() == 1) {
+					return made(new Arduino.Break(id(0)));
+				}
+				return error();
+			case CONTINUE:
+				trace("Continue");
+				if (tokens.count() == 1) {
+					return made(new Arduino.Continue(id(0)));
+				}
+				return error();
+			case RETURN:
+				trace("Return");
+				if (tokens.count() == 1) {
+					return made(new Arduino.Return(id(0)));
+				}
+				return error();
+			case GOTO:
+				trace("Goto");
+				if (tokens.count() == 2 && tokens.isName(1)
+						&& tokens.text(1).contains("function")) {
+					return made(new Arduino.Goto(id(1)));
+				}
+				return error();
+			default:
+				return parseAssign();
+			}
+		}
+
+		// Last Arduino case - Assign - when first token doesn't match any
+		private Arduino.Node parseAssign() {
+			if (tokens.isName(0) && tokens.is(1, Lexer.Keyword.IS)) {
+				// X is remainder of 7 / 5.
+				if (tokens.count() == 7 && tokens.is(2, Lexer.Keyword.REMAINDER)
+						&& tokens.is(3, Lexer.Keyword.OF) && tokens.isInt(4)
+						&& tokens.isOp(5, '/') && tokens.isInt(6)) {
+					trace("remainder");
+					return made(new Arduino.remainder(id(0), number(4),
+							number(6)));
+				}
+				// X is 5. or X is (count + 1) * 2.
+				pos = 2;
+				budget = MAX_EXPRESSION;
+				Arduino.Expression value = expression();
+				if (value != null && pos == tokens.count()) {
+					trace("Assign");
+					return made(new Arduino.Assign(id(0), value));
+				}
+				if (budget < 0) {
+					error("Error @ expression deeper than " + MAX_EXPRESSION
+							+ " in " + tokens.statementText(), tokens.start(),
+							tokens.end());
+					return null;
+				}
+			}
+			return error();
+		}
+
+		// expression = term { ("+" | "-") term }
+		private Arduino.Expression expression() {
+			Arduino.Expression left = term();
+			while (left != null && budget >= 0) {
+				if (tokens.isOp(pos, '+')) {
+					pos++;
+					Arduino.Expression right = term();
+					left = right == null ? null : made(new Arduino.Plus(left,
+							right));
+				} else if (tokens.isOp(pos, '-')) {
+					pos++;
+					Arduino.Expression right = term();
+					left = right == null ? null : made(new Arduino.Minus(left,
+							right));
+				} else {
+					break;
+				}
+			}
+			return left;
+		}
+
+		// term = factor { ("*" | "/") factor }
+		private Arduino.Expression term() {
+			Arduino.Expression left = factor();
+			while (left != null && budget >= 0) {
+				if (tokens.isOp(pos, '*')) {
+					pos++;
+					Arduino.Expression right = factor();
+					left = right == null ? null : made(new Arduino.Times(left,
+							right));
+				} else if (tokens.isOp(pos, '/')) {
+					pos++;
+					Arduino.Expression right = factor();
+					left = right == null ? null : made(new Arduino.Divide(left,
+							right));
+				} else {
+					break;
+				}
+			}
+			return left;
+		}
+
+		// factor = integer | identifier | "(" expression ")" | "-" factor
+		private Arduino.Expression factor() {
+			if (--budget < 0) {
+				return null;
+			}
+			if (tokens.isInt(pos)) {
+				return number(pos++);
+			}
+			if (tokens.kind(pos) == Lexer.Kind.IDENTIFIER) {
+				return id(pos++);
+			}
+			if (tokens.isOp(pos, '-')) {
+				pos++;
+				Arduino.Expression operand = factor();
+				return operand == null ? null : made(new Arduino.Minus(
+						made(new Arduino.Number(0)), operand));
+			}
+			if (tokens.isOp(pos, '(')) {
+				pos++;
+				Arduino.Expression inner = expression();
+				if (inner != null && tokens.isOp(pos, ')')) {
+					pos++;
+					return inner;
+				}
+			}
+			return null;
+		}
+
+		private Arduino.Id id(int i) {
+			return names.id(names.intern(tokens.source, tokens.starts[i],
+					tokens.ends[i]));
+		}
+
+		private Arduino.Number number(int i) {
+			return made(new Arduino.Number(tokens.intValue(i)));
+		}
+
+		private void trace(String event) {
+			diagnostics.trace(event, tokens.start(), tokens.end());
+		}
+
+		// Report the statement in the window as wrong and skip it
+		private Arduino.Node error() {
+			error("Error @ " + tokens.statementText(), tokens.start(),
+					tokens.end());
+			return null;
+		}
+
+		private void error(String text, int start, int end) {
+			if (errors++ == 0) {
+				message = text;
+			}
+			diagnostics.error(text, start, end);
+		}
+	}
+}
@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Fuzzes the parser for inputs that make it, or the compiler after it, throw,
+ * and for inputs whose parse takes more than linear time. Inputs are mutated
+ * from scripts made by ScriptGenerator and from the corpus directory.
+ *
+ * Coverage is read off what the parser reports rather than instrumented: an
+ * input is kept for further mutation when it produces a pair of successive
+ * diagnostics (trace events and kinds of error) that no input has produced
+ * before. Every kept input, and one in SAMPLE of the others, is grown by
+ * repetition to at least BASE chars and parsed once as it is and once as
+ * SCALE copies of itself; if the time per char of the long parse is more
+ * than LIMIT times that of the short one, the input is slow.
+ *
+ * The first input to fail in each way is saved to the corpus as a crash- or
+ * slow- file named by the hash of its contents; a crash is told apart by its
+ * exception and the methods at the top of its stack, a slow input by the
+ * kinds of diagnostics it produces. The corpus is checked again at the start
+ * of every run; with -replay only the corpus is checked. The exit status is 1
+ * when any input failed.
+ *
+ * Usage: java ParserFuzzer [-seconds n] [-seed n] [-corpus dir] [-replay]
+ */
+public class ParserFuzzer {
+	static final int BASE = 4096;
+	static final int SCALE = 16;
+	static final double LIMIT = 4;
+	static final int SAMPLE = 64;
+	static final int MAX_INPUT = 65536;
+
+	// Pieces of the language mutations insert
+	static final String[] TOKENS = { ".", "(", ")", "-", "+", "*", "/", " ",
+			"\n", "0", "7", "99999999999", "x", "pin1", " is ", " to ",
+			"Setup.", "Loop.", "End setup.", "End loop.", "End forloop.",
+			"End.", "For i is 0 increasing to 3.", "x is (1 + y) * 2.",
+			"x is remainder of 7 / 5.", "digitalWrite HIGH to pin1.",
+			"analogWrite 9 to pin1.", "Set pinMode of pin1 to OUTPUT.",
+			"digitalRead from pin1.", "Break.", "Goto function1." };
+
+	private static final Parser PARSER = new Parser();
+	private static final Arduino.ArduinoCompiler COMPILER = new Arduino.ArduinoCompiler();
+
+	private final Random random;
+	private final Path corpus;
+	private final List<String> inputs = new ArrayList<String>();
+	private final BitSet seen = new BitSet();
+	private final Map<String, Integer> events = new HashMap<String, Integer>();
+	private final Set<String> failed = new HashSet<String>();
+	private int failures;
+
+	ParserFuzzer(long seed, Path corpus) {
+		this.random = new Random(seed);
+		this.corpus = corpus;
+	}
+
+	public static void main(String[] args) throws IOException {
+		long seconds = 60;
+		long seed = System.nanoTime();
+		Path corpus = Paths.get("fuzz-corpus");
+		boolean replay = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-seconds") && i + 1 < args.length) {
+				seconds = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-seed") && i + 1 < args.length) {
+				seed = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-corpus") && i + 1 < args.length) {
+				corpus = Paths.get(args[++i]);
+			} else if (args[i].equals("-replay")) {
+				replay = true;
+			} else {
+				System.err.println("Usage: java ParserFuzzer [-seconds n] [-seed n] [-corpus dir] [-replay]");
+				System.exit(2);
+			}
+		}
+		ParserFuzzer fuzzer = new ParserFuzzer(seed, corpus);
+		fuzzer.replay();
+		if (!replay) {
+			System.out.println("seed " + seed);
+			fuzzer.fuzz(seconds * 1000000000L);
+		}
+		System.exit(fuzzer.failures == 0 ? 0 : 1);
+	}
+
+	// Check every input saved in the corpus, and mutate them as seeds
+	void replay() throws IOException {
+		if (!Files.isDirectory(corpus)) {
+			return;
+		}
+		int checked = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(corpus,
+				"*.txt")) {
+			for (Path file : files) {
+				String input = new String(Files.readAllBytes(file),
+						StandardCharsets.UTF_8);
+				inputs.add(input);
+				String failure = check(input, true);
+				if (failure != null) {
+					failures++;
+					failed.add(failure);
+					System.out.println("FAIL " + file + ": " + failure);
+				}
+				checked++;
+			}
+		}
+		System.out.println(checked + " corpus inputs checked, " + failures
+				+ " failed");
+	}
+
+	void fuzz(long nanos) throws IOException {
+		for (int depth = 1; depth <= 4; depth++) {
+			inputs.add(ScriptGenerator.generate(20, depth, depth));
+		}
+		long end = System.nanoTime() + nanos;
+		long runs = 0;
+		while (System.nanoTime() < end) {
+			String input = mutate(inputs.get(random.nextInt(inputs.size())));
+			boolean fresh = covers(input);
+			if (fresh) {
+				inputs.add(input);
+			}
+			String failure = check(input, fresh || random.nextInt(SAMPLE) == 0);
+			if (failure != null) {
+				failures++;
+				if (failed.add(failure)) {
+					Path saved = save(input, failure.startsWith("slow") ? "slow-"
+							: "crash-");
+					System.out.println("FAIL " + saved + ": " + failure);
+				}
+			}
+			runs++;
+		}
+		System.out.println(runs + " runs, " + inputs.size() + " inputs kept, "
+				+ seen.cardinality() + " event pairs, " + failures
+				+ " failed in " + failed.size() + " ways");
+	}
+
+	// Names the parser's diagnostics for an input, an error by its kind
+	static class Events implements Diagnostics {
+		final List<String> names = new ArrayList<String>();
+
+		public void trace(String event, int start, int end) {
+			names.add(event);
+		}
+
+		public void warning(String message, int start, int end) {
+			names.add("warning");
+		}
+
+		public void error(String message, int start, int end) {
+			names.add(message.startsWith("Error @ missing End") ? "missing End"
+					: message.startsWith("Error @ blocks nested") ? "too deep"
+							: message.startsWith("Error @ expression deeper") ? "too long"
+									: "error");
+		}
+	}
+
+	// Whether parsing input reports a pair of diagnostics not seen before;
+	// an input that throws is left for check to report
+	boolean covers(String input) {
+		Events parsed = new Events();
+		try {
+			PARSER.context(input, parsed).parseProgram();
+		} catch (RuntimeException | StackOverflowError e) {
+			return false;
+		}
+		boolean fresh = false;
+		int last = 0;
+		for (String event : parsed.names) {
+			Integer id = events.get(event);
+			if (id == null) {
+				id = events.size() + 1;
+				events.put(event, id);
+			}
+			int pair = (last * 31 + id) & 0xffff;
+			if (!seen.get(pair)) {
+				seen.set(pair);
+				fresh = true;
+			}
+			last = id;
+		}
+		return fresh;
+	}
+
+	/**
+	 * Why input fails, or null when it does not. It fails when parsing it, or
+	 * compiling what parsed, throws; when timed, also when a parse of SCALE
+	 * copies of it takes more than LIMIT times as long per char.
+	 */
+	static String check(String input, boolean timed) {
+		try {
+			Parser.Context parse = PARSER.context(input);
+			Arduino.Program program = parse.parseProgram();
+			if (!parse.failed()) {
+				COMPILER.compile(program);
+			}
+			if (!timed) {
+				return null;
+			}
+			String base = repeat(input, (BASE + input.length()) / Math.max(1,
+					input.length()));
+			String scaled = repeat(base, SCALE);
+			double ratio = nanosPerChar(scaled) / nanosPerChar(base);
+			if (ratio > LIMIT) {
+				// once more, in case the first was a pause or a compile
+				ratio = nanosPerChar(scaled) / nanosPerChar(base);
+				if (ratio > LIMIT) {
+					Events parsed = new Events();
+					PARSER.context(input, parsed).parseProgram();
+					return String.format("slow, %.0fx the time per char at %d"
+							+ " times the size, with %s", ratio, SCALE,
+							new TreeSet<String>(parsed.names));
+				}
+			}
+			return null;
+		} catch (RuntimeException | StackOverflowError e) {
+			Set<String> methods = new TreeSet<String>();
+			StackTraceElement[] stack = e.getStackTrace();
+			for (int i = 0; i < Math.min(stack.length, 16); i++) {
+				methods.add(stack[i].getClassName() + "."
+						+ stack[i].getMethodName());
+			}
+			return e.getClass().getName() + " in " + methods;
+		}
+	}
+
+	// Best of a few parses, so a pause in one does not count
+	private static double nanosPerChar(String input) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			long begin = System.nanoTime();
+			PARSER.context(input).parseProgram();
+			best = Math.min(best, System.nanoTime() - begin);
+		}
+		return (double) best / Math.max(1, input.length());
+	}
+
+	private static String repeat(String input, int times) {
+		StringBuilder out = new StringBuilder(input.length() * times + times);
+		for (int i = 0; i < times; i++) {
+			out.append(input).append('\n');
+		}
+		return out.toString();
+	}
+
+	String mutate(String input) {
+		StringBuilder out = new StringBuilder(input);
+		int edits = 1 + random.nextInt(4);
+		for (int e = 0; e < edits; e++) {
+			int at = random.nextInt(out.length() + 1);
+			int length = out.length() - at == 0 ? 0 : random.nextInt(Math.min(
+					out.length() - at, 64) + 1);
+			switch (random.nextInt(6)) {
+			case 0:
+				out.insert(at, TOKENS[random.nextInt(TOKENS.length)]);
+				break;
+			case 1:
+				out.delete(at, at + length);
+				break;
+			case 2:
+				// repeat a piece, as deep nesting and long chains need
+				String piece = out.substring(at, at + length);
+				for (int n = 1 << random.nextInt(8); n > 0; n--) {
+					out.insert(at, piece);
+				}
+				break;
+			case 3:
+				String other = inputs.get(random.nextInt(inputs.size()));
+				int from = random.nextInt(other.length() + 1);
+				out.insert(at, other, from, Math.min(other.length(), from
+						+ random.nextInt(256)));
+				break;
+			case 4:
+				if (at < out.length()) {
+					out.setCharAt(at, " .()-+*/\n0aZ".charAt(random.nextInt(12)));
+				}
+				break;
+			default:
+				out.setLength(at);
+				break;
+			}
+		}
+		if (out.length() > MAX_INPUT) {
+			out.setLength(MAX_INPUT);
+		}
+		return out.toString();
+	}
+
+	private Path save(String input, String prefix) throws IOException {
+		Files.createDirectories(corpus);
+		byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+		Path file = corpus.resolve(prefix
+				+ Long.toHexString(AstFile.hash(bytes)) + ".txt");
+		Files.write(file, bytes);
+		return file;
+	}
+}
@@ -0,0 +1,9 @@
+/**
+ * A rewrite of the tree run before code generation. Nodes may be shared with
+ * the compile cache and with other programs, so a pass never changes the node
+ * it is given; it returns a new node where something changed and the same
+ * node everywhere else.
+ */
+public interface Pass {
+	Arduino.Node apply(Arduino.Node node);
+}
@@ -0,0 +1,478 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops pin operations that leave the board as it was, and assignments that
+ * are overwritten before they are read. Each block is walked in order with
+ * what is known of every pin: a pinMode to the mode the pin already has, and
+ * a digitalWrite or analogWrite of the value it already holds, are removed.
+ * A write that changes the level is kept even when another follows it at
+ * once, since the pulse between them can be seen on the pin. A write also
+ * forgets the pin's mode, as writing an input turns its pull-up on or off.
+ *
+ * Pins are known by number when a whole Program is given and the name is a
+ * constant, so two names for one pin share what is known of it. Any other
+ * name may be any pin: setting one forgets every other pin, and setting a
+ * pin by number forgets every pin known only by name.
+ *
+ * setup() runs before loop(), so what setUp leaves known is known on entry to
+ * a Loop body. What is known on entry to a loop body, and after the loop, is
+ * only what every statement in the body agrees with; a jump, or a Branch,
+ * forgets everything, and assigning to a pin's name forgets that pin.
+ *
+ * An assignment, which the generator declares, is removed when a later one in
+ * the same block sets the variable again with nothing between them, nor its
+ * own new value, reading it. How many of each were removed is kept across
+ * every program the pass is applied to. Names are compared by their symbol
+ * in a table kept for one apply.
+ */
+public class PeepholeOptimizer implements Pass {
+	// Known state of pins, by key
+	static class Pins {
+		// Keys at or past this are NAMED plus the symbol of a name
+		static final long NAMED = 1L << 32;
+
+		final SymbolTable symbols;
+		final Map<Long, String> modes = new HashMap<Long, String>();
+		// "HIGH" or "LOW" after a digitalWrite, the number after an analogWrite
+		final Map<Long, Object> levels = new HashMap<Long, Object>();
+
+		Pins(SymbolTable symbols) {
+			this.symbols = symbols;
+		}
+
+		Pins copy() {
+			Pins copy = new Pins(symbols);
+			copy.modes.putAll(modes);
+			copy.levels.putAll(levels);
+			return copy;
+		}
+
+		// The pin number of a constant, or else NAMED plus the symbol
+		static Long key(SymbolTable symbols, Arduino.Id pin) {
+			int symbol = symbols.symbol(pin);
+			return symbols.isConstant(symbol) ? (long) symbols.value(symbol)
+					: NAMED + symbol;
+		}
+
+		static boolean named(Long key) {
+			return key >= NAMED;
+		}
+
+		Long key(Arduino.Id pin) {
+			return key(symbols, pin);
+		}
+
+		void forget(Arduino.Id name) {
+			Long key = key(name);
+			modes.remove(key);
+			levels.remove(key);
+		}
+
+		// Forget every other pin that setting the pin of key may be
+		void set(Long key) {
+			forgetAliases(modes.keySet().iterator(), key);
+			forgetAliases(levels.keySet().iterator(), key);
+		}
+
+		private static void forgetAliases(Iterator<Long> keys, Long key) {
+			while (keys.hasNext()) {
+				Long other = keys.next();
+				if (!other.equals(key) && (named(key) || named(other))) {
+					keys.remove();
+				}
+			}
+		}
+
+		void clear() {
+			modes.clear();
+			levels.clear();
+		}
+
+		// Keep only what a loop body or block with these effects cannot change
+		void keep(Effects effects) {
+			if (effects.jumps) {
+				clear();
+				return;
+			}
+			for (Iterator<Long> i = modes.keySet().iterator(); i.hasNext();) {
+				Long pin = i.next();
+				if (effects.aliases(pin)
+						|| !agrees(effects.modes.get(pin), modes.get(pin))) {
+					i.remove();
+				}
+			}
+			for (Iterator<Long> i = levels.keySet().iterator(); i.hasNext();) {
+				Long pin = i.next();
+				if (effects.aliases(pin)
+						|| !agrees(effects.modes.get(pin), modes.get(pin))
+						|| !agrees(effects.levels.get(pin), levels.get(pin))) {
+					i.remove();
+				}
+			}
+		}
+
+		private static boolean agrees(Object effect, Object known) {
+			return effect == null || effect.equals(known);
+		}
+	}
+
+	private final LongAdder pinModes = new LongAdder();
+	private final LongAdder digitalWrites = new LongAdder();
+	private final LongAdder analogWrites = new LongAdder();
+	private final LongAdder assignments = new LongAdder();
+
+	public Arduino.Node apply(Arduino.Node node) {
+		if (node instanceof Arduino.Program) {
+			Arduino.Program program = (Arduino.Program) node;
+			return program(program, SymbolTable.build(program, Diagnostics.NONE));
+		}
+		// nothing is known to be constant in part of a program
+		SymbolTable symbols = new SymbolTable();
+		if (node instanceof Arduino.Sequence) {
+			return block((Arduino.Sequence) node, new Pins(symbols));
+		}
+		Arduino.Sequence out = new Arduino.Sequence();
+		statement(node, new Pins(symbols), out);
+		return out.size() == 1 ? out.get(0) : out;
+	}
+
+	public long removed() {
+		return pinModes.sum() + digitalWrites.sum() + analogWrites.sum()
+				+ assignments.sum();
+	}
+
+	public String summary() {
+		return "removed " + pinModes.sum() + " pinMode, " + digitalWrites.sum()
+				+ " digitalWrite, " + analogWrites.sum() + " analogWrite, "
+				+ assignments.sum() + " assignment";
+	}
+
+	private Arduino.Node program(Arduino.Program program, SymbolTable symbols) {
+		if (!(program.body instanceof Arduino.Sequence)) {
+			return program;
+		}
+		Arduino.Sequence body = (Arduino.Sequence) program.body;
+		// what setup() leaves known, when there is one setup() to go by;
+		// Loops wait for it, as setup() runs first wherever it is written
+		Pins afterSetUp = null;
+		int setUps = 0;
+		List<Integer> loops = new ArrayList<Integer>();
+		Arduino.Sequence out = new Arduino.Sequence();
+		boolean changed = false;
+		for (int i = 0; i < body.size(); i++) {
+			Arduino.Node child = body.get(i);
+			int mark = out.size();
+			if (child instanceof Arduino.setUp) {
+				setUps++;
+				Arduino.setUp setUp = (Arduino.setUp) child;
+				Pins pins = new Pins(symbols);
+				Arduino.Sequence kept = block(setUp.body, pins);
+				afterSetUp = new Effects(setUp, symbols).jumps ? null : pins;
+				out.addNode(kept == setUp.body ? setUp : new Arduino.setUp(kept));
+			} else if (child instanceof Arduino.Loop) {
+				loops.add(mark);
+				out.addNode(child);
+			} else {
+				statement(child, new Pins(symbols), out);
+			}
+			changed |= out.size() != mark + 1 || out.get(mark) != child;
+		}
+		for (int i : loops) {
+			Arduino.Loop loop = (Arduino.Loop) out.get(i);
+			Pins pins = setUps == 1 && afterSetUp != null ? afterSetUp.copy()
+					: new Pins(symbols);
+			Arduino.Sequence kept = loopBody(loop, pins);
+			if (kept != loop.body) {
+				out.children.set(i, new Arduino.Loop(kept));
+				changed = true;
+			}
+		}
+		Arduino.Sequence kept = overwritten(changed ? out : body, symbols);
+		return kept == body ? program : new Arduino.Program(kept);
+	}
+
+	private Arduino.Sequence loopBody(Arduino.Loop loop, Pins pins) {
+		pins.keep(new Effects(loop.body, pins.symbols));
+		return block(loop.body, pins);
+	}
+
+	// The block without what it does not need, or the block if that is all
+	// of it; pins is what is known on entry and is left as known at the end
+	private Arduino.Sequence block(Arduino.Sequence block, Pins pins) {
+		Arduino.Sequence out = new Arduino.Sequence();
+		boolean changed = false;
+		for (int i = 0; i < block.size(); i++) {
+			Arduino.Node child = block.get(i);
+			int mark = out.size();
+			statement(child, pins, out);
+			changed |= out.size() != mark + 1 || out.get(mark) != child;
+		}
+		return overwritten(changed ? out : block, pins.symbols);
+	}
+
+	private void statement(Arduino.Node node, Pins pins, Arduino.Sequence out) {
+		if (node instanceof Arduino.pinMode) {
+			Arduino.pinMode pinMode = (Arduino.pinMode) node;
+			Long pin = pins.key(pinMode.predicate);
+			if (pinMode.value.value.equals(pins.modes.get(pin))) {
+				pinModes.increment();
+				return;
+			}
+			pins.set(pin);
+			pins.modes.put(pin, pinMode.value.value);
+			pins.levels.remove(pin);
+		} else if (node instanceof Arduino.digitalWrite) {
+			Arduino.digitalWrite write = (Arduino.digitalWrite) node;
+			if (write(pins.key(write.predicate), level(write), pins)) {
+				digitalWrites.increment();
+				return;
+			}
+		} else if (node instanceof Arduino.analogWrite) {
+			Arduino.analogWrite write = (Arduino.analogWrite) node;
+			if (write(pins.key(write.predicate), write.value.n, pins)) {
+				analogWrites.increment();
+				return;
+			}
+		} else if (node instanceof Arduino.Assign) {
+			pins.forget(((Arduino.Assign) node).variable);
+		} else if (node instanceof Arduino.remainder) {
+			Arduino.remainder remainder = (Arduino.remainder) node;
+			if (remainder.id instanceof Arduino.Id) {
+				pins.forget((Arduino.Id) remainder.id);
+			}
+		} else if (node instanceof Arduino.forLoop) {
+			Arduino.forLoop loop = (Arduino.forLoop) node;
+			Effects effects = new Effects(loop, pins.symbols);
+			Pins inside = pins.copy();
+			inside.keep(effects);
+			Arduino.Sequence body = block(loop.body, inside);
+			pins.keep(effects);
+			if (body.size() == 0) {
+				// nothing left to repeat
+				return;
+			}
+			node = body == loop.body ? loop : new Arduino.forLoop(loop.id,
+					loop.initValue, loop.maxValue, body);
+		} else if (node instanceof Arduino.Loop) {
+			Arduino.Loop loop = (Arduino.Loop) node;
+			Arduino.Sequence body = loopBody(loop, pins.copy());
+			pins.keep(new Effects(loop, pins.symbols));
+			node = body == loop.body ? loop : new Arduino.Loop(body);
+		} else if (node instanceof Arduino.setUp) {
+			Arduino.setUp setUp = (Arduino.setUp) node;
+			Arduino.Sequence body = block(setUp.body, new Pins(pins.symbols));
+			pins.keep(new Effects(setUp, pins.symbols));
+			node = body == setUp.body ? setUp : new Arduino.setUp(body);
+		} else if (node instanceof Arduino.Branch
+				|| node instanceof Arduino.Break
+				|| node instanceof Arduino.Continue
+				|| node instanceof Arduino.Return
+				|| node instanceof Arduino.Goto) {
+			pins.clear();
+		}
+		out.addNode(node);
+	}
+
+	private static String level(Arduino.digitalWrite write) {
+		return write.value instanceof Arduino.HIGH ? "HIGH" : "LOW";
+	}
+
+	// Whether writing level to pin changes nothing, noting it if it does
+	private static boolean write(Long pin, Object level, Pins pins) {
+		if (level.equals(pins.levels.get(pin))) {
+			return true;
+		}
+		pins.set(pin);
+		pins.modes.remove(pin);
+		pins.levels.put(pin, level);
+		return false;
+	}
+
+	/**
+	 * The block without assignments that a later one overwrites first, or the
+	 * block when there are none. Walked backwards, holding the symbols of the
+	 * names that are set again before anything reads them.
+	 */
+	private Arduino.Sequence overwritten(Arduino.Sequence block,
+			SymbolTable symbols) {
+		BitSet setAgain = new BitSet();
+		boolean[] dead = null;
+		for (int i = block.size() - 1; i >= 0; i--) {
+			Arduino.Node child = block.get(i);
+			LoopOptimizer.Scan reads = new LoopOptimizer.Scan(symbols);
+			int sets = -1;
+			if (child instanceof Arduino.Assign) {
+				Arduino.Assign assign = (Arduino.Assign) child;
+				if (setAgain.get(symbols.symbol(assign.variable))) {
+					if (dead == null) {
+						dead = new boolean[block.size()];
+					}
+					dead[i] = true;
+					assignments.increment();
+					continue;
+				}
+				sets = symbols.symbol(assign.variable);
+				assign.value.accept(reads);
+			} else if (child instanceof Arduino.remainder
+					&& ((Arduino.remainder) child).id instanceof Arduino.Id) {
+				Arduino.remainder remainder = (Arduino.remainder) child;
+				sets = symbols.symbol((Arduino.Id) remainder.id);
+				remainder.firstNumber.accept(reads);
+				remainder.secNumber.accept(reads);
+			} else if (setAgain.isEmpty()) {
+				continue;
+			} else {
+				child.accept(reads);
+			}
+			if (reads.jumps) {
+				setAgain.clear();
+			}
+			if (sets >= 0) {
+				setAgain.set(sets);
+			}
+			setAgain.andNot(reads.mentions);
+		}
+		if (dead == null) {
+			return block;
+		}
+		Arduino.Sequence out = new Arduino.Sequence();
+		for (int i = 0; i < block.size(); i++) {
+			if (!dead[i]) {
+				out.addNode(block.get(i));
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * What a statement may do to pins, wherever it runs within it: the one
+	 * mode and level each pin is set to, or CHANGED where they differ, the
+	 * pin is written after its mode is set, or the pin's name is assigned;
+	 * which pins it sets at all; and whether it can jump.
+	 */
+	static class Effects extends NodeSwitch<Void> {
+		static final Object CHANGED = new Object();
+
+		private final SymbolTable symbols;
+		final Map<Long, Object> modes = new HashMap<Long, Object>();
+		final Map<Long, Object> levels = new HashMap<Long, Object>();
+		private final Set<Long> pins = new HashSet<Long>();
+		private int named;
+		boolean jumps;
+
+		Effects(Arduino.Node node, SymbolTable symbols) {
+			this.symbols = symbols;
+			apply(node);
+		}
+
+		// Whether setting some other pin may have set the pin of key too
+		boolean aliases(Long key) {
+			if (Pins.named(key)) {
+				return pins.size() > (pins.contains(key) ? 1 : 0);
+			}
+			return named > 0;
+		}
+
+		private Long pin(Arduino.Id name) {
+			Long key = Pins.key(symbols, name);
+			if (pins.add(key) && Pins.named(key)) {
+				named++;
+			}
+			return key;
+		}
+
+		private static void set(Map<Long, Object> to, Long pin, Object value) {
+			Object before = to.putIfAbsent(pin, value);
+			if (before != null && !before.equals(value)) {
+				to.put(pin, CHANGED);
+			}
+		}
+
+		private void assigned(Arduino.Id name) {
+			Long key = Pins.key(symbols, name);
+			modes.put(key, CHANGED);
+			levels.put(key, CHANGED);
+		}
+
+		@Override
+		protected Void on(Arduino.pinMode pinMode) {
+			set(modes, pin(pinMode.predicate), pinMode.value.value);
+			return null;
+		}
+
+		@Override
+		protected Void on(Arduino.digitalWrite write) {
+			written(pin(write.predicate), level(write));
+			return null;
+		}
+
+		@Override
+		protected Void on(Arduino.analogWrite write) {
+			written(pin(write.predicate), write.value.n);
+			return null;
+		}
+
+		private void written(Long pin, Object level) {
+			set(levels, pin, level);
+			modes.put(pin, CHANGED);
+		}
+
+		@Override
+		protected Void on(Arduino.Assign assign) {
+			assigned(assign.variable);
+			return null;
+		}
+
+		@Override
+		protected Void on(Arduino.remainder remainder) {
+			if (remainder.id instanceof Arduino.Id) {
+				assigned((Arduino.Id) remainder.id);
+			}
+			return null;
+		}
+
+		@Override
+		protected Void on(Arduino.forLoop forLoop) {
+			assigned(forLoop.id);
+			return apply(forLoop.body);
+		}
+
+		@Override
+		protected Void on(Arduino.Branch branch) {
+			jumps = true;
+			return null;
+		}
+
+		@Override
+		protected Void on(Arduino.Break break1) {
+			jumps = true;
+			return null;
+		}
+
+		@Override
+		protected Void on(Arduino.Continue continue1) {
+			jumps = true;
+			return null;
+		}
+
+		@Override
+		protected Void on(Arduino.Return return1) {
+			jumps = true;
+			return null;
+		}
+
+		@Override
+		protected Void on(Arduino.Goto goto1) {
+			jumps = true;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+import java.util.BitSet;
+
+/**
+ * Generates a sketch whose digitalWrite and digitalRead of a constant pin go
+ * straight to the pin's port register: "PORTB |= _BV(5);" sets pin 13 of an
+ * Uno in a couple of cycles where the library call takes dozens. Writes next
+ * to one another in a block, to different pins of the same port, become one
+ * store; a second write to a pin starts a new store, so a pulse on it stays.
+ *
+ * A pin is constant when its name is a variable assigned one literal, or a
+ * name of the board such as A0 or LED_BUILTIN. The library calls also turn
+ * off PWM on the pin, so a pin given an analogWrite anywhere keeps them, as
+ * do all pins when an analogWrite goes to a pin that is not constant. Like
+ * hand written port code, and unlike the library, a store is not guarded
+ * against interrupts changing the same port.
+ */
+public class PortGenerator extends Arduino.ArduinoCompiler.Generator {
+	private final BoardPins board;
+	private final SymbolTable symbols;
+	// pins given an analogWrite, and whether one went to an unknown pin
+	private final BitSet analog = new BitSet();
+	private boolean analogUnknown;
+
+	PortGenerator(Emitter out, BoardPins board, SymbolTable symbols) {
+		super(out);
+		this.board = board;
+		this.symbols = symbols;
+		for (int s = 0; s < symbols.size(); s++) {
+			if (symbols.has(s, SymbolTable.ANALOG_WRITE)) {
+				int pin = pin(symbols.name(s));
+				if (pin < 0) {
+					analogUnknown = true;
+				} else {
+					analog.set(pin);
+				}
+			}
+		}
+	}
+
+	// Pin the name always stands for, or -1 when that is not known
+	private int pin(String name) {
+		int symbol = symbols.lookup(name);
+		if (symbol >= 0
+				&& symbols.has(symbol, SymbolTable.ASSIGNED
+						| SymbolTable.LOOP_VARIABLE)) {
+			return symbols.isConstant(symbol) ? symbols.value(symbol) : -1;
+		}
+		return board.alias(name);
+	}
+
+	// Pin to read or write through its port, or -1 to call the library
+	private int lowered(Arduino.Id id) {
+		if (analogUnknown) {
+			return -1;
+		}
+		int pin = pin(id.id);
+		return board.has(pin) && !analog.get(pin) ? pin : -1;
+	}
+
+	private int written(Arduino.Node node) {
+		return node instanceof Arduino.digitalWrite
+				? lowered(((Arduino.digitalWrite) node).predicate) : -1;
+	}
+
+	@Override
+	void block(Arduino.Node block) {
+		if (!(block instanceof Arduino.Sequence)) {
+			super.block(block);
+			return;
+		}
+		Arduino.Sequence statements = (Arduino.Sequence) block;
+		int size = statements.size();
+		int i = 0;
+		while (i < size) {
+			Arduino.Node statement = statements.get(i++);
+			int pin = written(statement);
+			if (pin < 0) {
+				statement.accept(this);
+				continue;
+			}
+			char port = board.port(pin);
+			int set = 0;
+			int clear = 0;
+			StringBuilder what = new StringBuilder();
+			while (true) {
+				Arduino.digitalWrite write = (Arduino.digitalWrite) statement;
+				boolean high = write.value instanceof Arduino.HIGH;
+				if (high) {
+					set |= 1 << board.bit(pin);
+				} else {
+					clear |= 1 << board.bit(pin);
+				}
+				what.append(what.length() == 0 ? "" : ", ")
+						.append(write.predicate.id).append(high ? " HIGH" : " LOW");
+				if (i == size) {
+					break;
+				}
+				int next = written(statements.get(i));
+				if (next < 0 || board.port(next) != port
+						|| ((set | clear) & 1 << board.bit(next)) != 0) {
+					break;
+				}
+				pin = next;
+				statement = statements.get(i++);
+			}
+			store(port, set, clear, what.toString());
+		}
+	}
+
+	@Override
+	public String visit(Arduino.digitalWrite digitalWrite) {
+		int pin = lowered(digitalWrite.predicate);
+		if (pin < 0) {
+			return super.visit(digitalWrite);
+		}
+		boolean high = digitalWrite.value instanceof Arduino.HIGH;
+		int bit = 1 << board.bit(pin);
+		store(board.port(pin), high ? bit : 0, high ? 0 : bit,
+				digitalWrite.predicate.id + (high ? " HIGH" : " LOW"));
+		return null;
+	}
+
+	@Override
+	public String visit(Arduino.digitalRead digitalRead) {
+		int pin = lowered(digitalRead.id);
+		if (pin < 0) {
+			return super.visit(digitalRead);
+		}
+		out.append("(void) (PIN" + board.port(pin) + " & _BV(" + board.bit(pin)
+				+ ")); // read ").append(digitalRead.id.id).newline();
+		return null;
+	}
+
+	// One store of the bits set and cleared in a port
+	private void store(char port, int set, int clear, String what) {
+		String register = "PORT" + port;
+		if (clear == 0) {
+			out.append(register + " |= " + mask(set, false));
+		} else if (set == 0) {
+			out.append(register + " &= ~" + mask(clear, true));
+		} else {
+			out.append(register + " = (" + register + " & ~" + mask(clear, true)
+					+ ") | " + mask(set, false));
+		}
+		out.append("; // " + what).newline();
+	}
+
+	private static String mask(int bits, boolean grouped) {
+		StringBuilder mask = new StringBuilder();
+		for (int bit = 0; bit < 8; bit++) {
+			if ((bits & 1 << bit) != 0) {
+				mask.append(mask.length() == 0 ? "" : " | ").append("_BV(")
+						.append(bit).append(')');
+			}
+		}
+		return grouped && Integer.bitCount(bits) > 1 ? "(" + mask + ")" : mask
+				.toString();
+	}
+}
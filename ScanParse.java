@@ -1,61 +1,17 @@
 public class ScanParse {
 
 	public static void main(String[] args) {
-		String source = "pinX is 5888.";
-		String output = "";
-		int index1 = 0;
+		String source = args.length > 0 ? args[0] : "pinX is 5888.";
+		Lexer lexer = new Lexer(source);
 
-		// This while loop will go until it hits .
-		while (source.charAt(index1) != '.') {
-			output = output + source.charAt(index1);
-			index1++;
-
-			if (source.charAt(index1) == ' ') {
-				// System.out.println("WHITE SPACE IS AT :" +index1);
-				index1++;
-				System.out.println(output);
-				doParse(output);
-				output = "";
-			} else if (source.charAt(index1) == '.') {
-				System.out.println(output);
-				doParse(output);
-				break;
-			}
-
-		}
-		
-		
-		// Parse then put to tree
-		
-	}
-	public static void doParse(String token){
-		AST astTree = new AST();
-		Statement statement = new Statement();
-		
-		if (token.equals("is")){
-			// add class = to AST
-			statement.addNode(new is());
-			System.out.println("=");
-		}
-		if (isDigit(token)){
-			statement.addNode(new number());
-			sequence.addNode()
+		// Walk the source once, printing each token with its offsets
+		while (lexer.next() != Lexer.Kind.EOF) {
+			System.out.println(lexer.kind() + " [" + lexer.start() + ", "
+					+ lexer.end() + ") " + lexer.text());
 		}
-		if (token.equals("pinX")){
-			statement.addNode(new Id);
-			System.out.println("Int pinX");
-		}
-	}
-	
-	public static boolean isDigit(String token){
-		int index = 0;
-		while(index < token.length()){
-			Character c = token.charAt(index);
-			if(!Character.isDigit(c)){
-				return false;
-			}
-			index++;
-		}
-		return true;
+
+		// Parse then put to tree, printing what the parser recognizes
+		new Parser().context(source, new Diagnostics.Logger(System.out))
+				.parseProgram();
 	}
 }
@@ -0,0 +1,78 @@
+import java.util.Random;
+
+/**
+ * Builds synthetic scripts for benchmarks and tests: a Setup block of pin
+ * modes, top level assignments and a Loop block of writes, assignments and
+ * For loops nested up to a given depth. The same seed always gives the same
+ * script.
+ */
+public class ScriptGenerator {
+	private final Random random;
+	private final int maxDepth;
+	private final StringBuilder out = new StringBuilder();
+	private int statements;
+
+	public ScriptGenerator(long seed, int maxDepth) {
+		this.random = new Random(seed);
+		this.maxDepth = maxDepth;
+	}
+
+	// A script of roughly the given number of statements
+	public static String generate(int statements, int maxDepth, long seed) {
+		return new ScriptGenerator(seed, maxDepth).script(statements);
+	}
+
+	public String script(int target) {
+		out.setLength(0);
+		statements = 0;
+		int pins = Math.max(1, Math.min(16, target / 20));
+
+		line("Setup.");
+		for (int p = 0; p < pins; p++) {
+			line("Set pinMode of pin" + p + " to OUTPUT.");
+		}
+		line("End setup.");
+		line("count is 0.");
+		line("Loop.");
+		while (statements < target) {
+			block(1, pins, target);
+		}
+		line("End loop.");
+		return out.toString();
+	}
+
+	// Statement text generated so far, in statements
+	public int statements() {
+		return statements;
+	}
+
+	private void block(int depth, int pins, int target) {
+		int choice = random.nextInt(10);
+		String pin = "pin" + random.nextInt(pins);
+		if (choice < 3) {
+			line("digitalWrite " + (random.nextBoolean() ? "HIGH" : "LOW")
+					+ " to " + pin + ".");
+		} else if (choice < 5) {
+			line("analogWrite " + random.nextInt(256) + " to " + pin + ".");
+		} else if (choice < 7) {
+			line("value" + random.nextInt(8) + " is " + random.nextInt(1000) + ".");
+		} else if (choice < 8) {
+			line("digitalRead from " + pin + ".");
+		} else if (depth < maxDepth) {
+			line("For i" + depth + " is 0 increasing to "
+					+ (1 + random.nextInt(10)) + ".");
+			int body = 1 + random.nextInt(5);
+			for (int i = 0; i < body && statements < target; i++) {
+				block(depth + 1, pins, target);
+			}
+			line("End forloop.");
+		} else {
+			line("count is " + random.nextInt(100) + ".");
+		}
+	}
+
+	private void line(String statement) {
+		out.append(statement).append('\n');
+		statements++;
+	}
+}
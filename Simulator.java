@@ -0,0 +1,787 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Runs a program without a board. The tree is assembled once into a flat
+ * array of int instructions for a small stack machine; the top level
+ * statements run first, as the globals of a sketch do, then setUp once and
+ * Loop as many times as asked.
+ *
+ * Variables live in an int array indexed by the symbol of their name. A pin
+ * named by a variable is the pin numbered by its value when it is used, so
+ * two variables holding 13 are the same pin; a number outside 0 to 255,
+ * which an Arduino pin argument cannot hold, is no pin and writes to it do
+ * nothing. A name the program never assigns, such as LED_BUILTIN, stands
+ * for a pin of its own after the numbered ones. A virtual clock counts CPU cycles of a 16 MHz ATmega328P, charging each
+ * operation roughly what the Arduino core takes for it, so a trace orders
+ * events the way the board would even though it is not cycle exact. Every
+ * change of a pin's level is recorded in a ring buffer that keeps the most
+ * recent ones.
+ *
+ * Arithmetic and literals wrap to 16 bits like an AVR int, and division by
+ * zero gives
+ * what the AVR runtime gives: -1 for a quotient and the dividend for a
+ * remainder.
+ *
+ * By default each function is also translated to JVM bytecode by
+ * BytecodeCompiler and run from there, so a long run is JIT compiled; the
+ * interpreter is used when asked for, or for a function with a statement
+ * too large for the JIT to compile or with more constants than a class file
+ * holds.
+ *
+ * Usage: java Simulator [-n loops] [-trace] [-interpret] file
+ */
+public class Simulator {
+	public static final long CLOCK_HZ = 16000000;
+	// Numbered pins; a named pin's index in the bank is PINS plus its symbol
+	public static final int PINS = 256;
+
+	// Instructions, each followed by its operands
+	static final int END = 0;
+	static final int PUSH = 1; // n
+	static final int LOAD = 2; // symbol
+	static final int STORE = 3; // symbol
+	static final int SET = 4; // symbol n
+	static final int ADD = 5;
+	static final int SUB = 6;
+	static final int MUL = 7;
+	static final int DIV = 8;
+	static final int MOD = 9;
+	static final int MODE = 10; // symbol mode
+	static final int DIGITAL_WRITE = 11; // symbol level
+	static final int ANALOG_WRITE = 12; // symbol value
+	static final int DIGITAL_READ = 13; // symbol
+	static final int ANALOG_READ = 14; // symbol
+	static final int FOR = 15; // symbol init max exit
+	static final int NEXT = 16; // symbol max body
+	static final int JUMP = 17; // target
+
+	// Approximate cycles per operation with the Arduino core on an ATmega328P
+	static final int ARITHMETIC_CYCLES = 2;
+	static final int MULTIPLY_CYCLES = 4;
+	static final int DIVIDE_CYCLES = 220;
+	static final int PIN_MODE_CYCLES = 40;
+	static final int DIGITAL_WRITE_CYCLES = 56;
+	static final int ANALOG_WRITE_CYCLES = 80;
+	static final int DIGITAL_READ_CYCLES = 52;
+	static final int ANALOG_READ_CYCLES = 1792;
+	static final int LOOP_CALL_CYCLES = 8;
+
+	private final SymbolTable symbols;
+	private final int[] code;
+	private final int globals;
+	private final int setup;
+	private final int loop;
+	private final int[] stack;
+	// globals, setUp and Loop as bytecode, or null where interpreted
+	private final Function compiledGlobals;
+	private final Function compiledSetup;
+	private final Function compiledLoop;
+
+	private final int[] variables;
+	private final int[] levels;
+	private final int[] modes;
+	private final Trace trace;
+	private long clock;
+	private long loops;
+	private boolean started;
+
+	// A function of the program translated by BytecodeCompiler
+	interface Function {
+		long call(Simulator simulator, int[] variables, long clock);
+	}
+
+	public Simulator(Arduino.Program program) {
+		this(program, 4096, true);
+	}
+
+	public Simulator(Arduino.Program program, int traceCapacity) {
+		this(program, traceCapacity, true);
+	}
+
+	// traceCapacity is rounded up to a power of two
+	public Simulator(Arduino.Program program, int traceCapacity,
+			boolean bytecode) {
+		Arduino.Node folded = new ConstantFolder().apply(program);
+		symbols = SymbolTable.build((Arduino.Program) folded, Diagnostics.NONE);
+		Assembler assembler = new Assembler();
+		folded.accept(assembler);
+		code = Arrays.copyOf(assembler.code, assembler.size);
+		globals = assembler.globals;
+		setup = assembler.setup;
+		loop = assembler.loop;
+		stack = new int[Math.max(1, assembler.maxStack)];
+		if (bytecode) {
+			compiledGlobals = BytecodeCompiler.compile(code, globals, setup,
+					stack.length);
+			compiledSetup = BytecodeCompiler.compile(code, setup, loop,
+					stack.length);
+			compiledLoop = BytecodeCompiler.compile(code, loop, code.length,
+					stack.length);
+		} else {
+			compiledGlobals = null;
+			compiledSetup = null;
+			compiledLoop = null;
+		}
+		variables = new int[symbols.size()];
+		levels = new int[PINS + symbols.size()];
+		modes = new int[PINS + symbols.size()];
+		trace = new Trace(traceCapacity);
+	}
+
+	// Index in the pin bank of the pin a name stands for now, or -1 if it is
+	// no pin
+	private int pin(int symbol) {
+		if (symbols.has(symbol, SymbolTable.ASSIGNED | SymbolTable.LOOP_VARIABLE)) {
+			int pin = variables[symbol];
+			return pin >= 0 && pin < PINS ? pin : -1;
+		}
+		return PINS + symbol;
+	}
+
+	private int pin(String name) {
+		int symbol = symbols.lookup(name);
+		return symbol < 0 ? -1 : pin(symbol);
+	}
+
+	// Set the level an input pin reads as
+	public void drive(String pin, int level) {
+		int at = pin(pin);
+		if (at >= 0) {
+			levels[at] = level;
+		}
+	}
+
+	// Run the globals and setUp, once
+	public void start() {
+		if (!started) {
+			started = true;
+			if (compiledGlobals != null) {
+				clock = compiledGlobals.call(this, variables, clock);
+			} else {
+				execute(globals);
+			}
+			if (compiledSetup != null) {
+				clock = compiledSetup.call(this, variables, clock);
+			} else {
+				execute(setup);
+			}
+		}
+	}
+
+	// Call loop() the given number of times, starting first if needed
+	public void run(long count) {
+		start();
+		Function compiled = compiledLoop;
+		for (long i = 0; i < count; i++) {
+			clock += LOOP_CALL_CYCLES;
+			if (compiled != null) {
+				clock = compiled.call(this, variables, clock);
+			} else {
+				execute(loop);
+			}
+		}
+		loops += count;
+	}
+
+	// Call loop() until the clock reaches the given cycle
+	public void runUntil(long cycle) {
+		start();
+		Function compiled = compiledLoop;
+		while (clock < cycle) {
+			clock += LOOP_CALL_CYCLES;
+			if (compiled != null) {
+				clock = compiled.call(this, variables, clock);
+			} else {
+				execute(loop);
+			}
+			loops++;
+		}
+	}
+
+	// Whether loop() runs as bytecode rather than in the interpreter
+	public boolean compiled() {
+		return compiledLoop != null;
+	}
+
+	public long clock() {
+		return clock;
+	}
+
+	public long micros() {
+		return clock * 1000000 / CLOCK_HZ;
+	}
+
+	public long loops() {
+		return loops;
+	}
+
+	public Trace trace() {
+		return trace;
+	}
+
+	public SymbolTable symbols() {
+		return symbols;
+	}
+
+	// Level of the pin a name stands for, or -1 if the program never
+	// mentions it or it is no pin
+	public int level(String pin) {
+		int at = pin(pin);
+		return at < 0 ? -1 : levels[at];
+	}
+
+	public int mode(String pin) {
+		int at = pin(pin);
+		return at < 0 ? SymbolTable.NO_MODE : modes[at];
+	}
+
+	public int value(String variable) {
+		int symbol = symbols.lookup(variable);
+		return symbol < 0 ? 0 : variables[symbol];
+	}
+
+	// Operations shared by the interpreter and the compiled functions
+
+	void write(int symbol, int level, long clock) {
+		int pin = pin(symbol);
+		if (pin >= 0) {
+			set(pin, level, clock);
+		}
+	}
+
+	void mode(int symbol, int mode, long clock) {
+		int pin = pin(symbol);
+		if (pin >= 0) {
+			modes[pin] = mode;
+			if (mode == SymbolTable.INPUT_PULLUP) {
+				set(pin, 1, clock);
+			}
+		}
+	}
+
+	private void set(int pin, int level, long clock) {
+		if (levels[pin] != level) {
+			levels[pin] = level;
+			trace.record(clock, pin, level);
+		}
+	}
+
+	static int divide(int a, int b) {
+		return b == 0 ? -1 : (short) (a / b);
+	}
+
+	static int remainder(int a, int b) {
+		return b == 0 ? a : (short) (a % b);
+	}
+
+	// Interpret one function from pc to its END
+	private void execute(int pc) {
+		final int[] code = this.code;
+		final int[] stack = this.stack;
+		final int[] variables = this.variables;
+		int sp = 0;
+		long clock = this.clock;
+		while (true) {
+			switch (code[pc]) {
+			case END:
+				this.clock = clock;
+				return;
+			case PUSH:
+				stack[sp++] = code[pc + 1];
+				pc += 2;
+				break;
+			case LOAD:
+				stack[sp++] = variables[code[pc + 1]];
+				pc += 2;
+				break;
+			case STORE:
+				variables[code[pc + 1]] = stack[--sp];
+				clock += ARITHMETIC_CYCLES;
+				pc += 2;
+				break;
+			case SET:
+				variables[code[pc + 1]] = code[pc + 2];
+				clock += ARITHMETIC_CYCLES;
+				pc += 3;
+				break;
+			case ADD:
+				sp--;
+				stack[sp - 1] = (short) (stack[sp - 1] + stack[sp]);
+				clock += ARITHMETIC_CYCLES;
+				pc++;
+				break;
+			case SUB:
+				sp--;
+				stack[sp - 1] = (short) (stack[sp - 1] - stack[sp]);
+				clock += ARITHMETIC_CYCLES;
+				pc++;
+				break;
+			case MUL:
+				sp--;
+				stack[sp - 1] = (short) (stack[sp - 1] * stack[sp]);
+				clock += MULTIPLY_CYCLES;
+				pc++;
+				break;
+			case DIV:
+				sp--;
+				stack[sp - 1] = divide(stack[sp - 1], stack[sp]);
+				clock += DIVIDE_CYCLES;
+				pc++;
+				break;
+			case MOD:
+				sp--;
+				stack[sp - 1] = remainder(stack[sp - 1], stack[sp]);
+				clock += DIVIDE_CYCLES;
+				pc++;
+				break;
+			case MODE:
+				mode(code[pc + 1], code[pc + 2], clock);
+				clock += PIN_MODE_CYCLES;
+				pc += 3;
+				break;
+			case DIGITAL_WRITE:
+				write(code[pc + 1], code[pc + 2], clock);
+				clock += DIGITAL_WRITE_CYCLES;
+				pc += 3;
+				break;
+			case ANALOG_WRITE:
+				write(code[pc + 1], code[pc + 2], clock);
+				clock += ANALOG_WRITE_CYCLES;
+				pc += 3;
+				break;
+			case DIGITAL_READ:
+				clock += DIGITAL_READ_CYCLES;
+				pc += 2;
+				break;
+			case ANALOG_READ:
+				clock += ANALOG_READ_CYCLES;
+				pc += 2;
+				break;
+			case FOR:
+				variables[code[pc + 1]] = code[pc + 2];
+				clock += ARITHMETIC_CYCLES;
+				pc = code[pc + 2] < code[pc + 3] ? pc + 5 : code[pc + 4];
+				break;
+			case NEXT:
+				clock += ARITHMETIC_CYCLES;
+				pc = ++variables[code[pc + 1]] < code[pc + 2] ? code[pc + 3]
+						: pc + 4;
+				break;
+			case JUMP:
+				pc = code[pc + 1];
+				break;
+			default:
+				throw new IllegalStateException("bad instruction " + code[pc]
+						+ " at " + pc);
+			}
+		}
+	}
+
+	/**
+	 * The last changes of pin levels, oldest first, kept as parallel arrays
+	 * of cycle, index in the pin bank and level.
+	 */
+	public class Trace {
+		private final long[] cycles;
+		private final int[] pins;
+		private final int[] levels;
+		private final int mask;
+		private long written;
+
+		Trace(int capacity) {
+			int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+			cycles = new long[size];
+			pins = new int[size];
+			levels = new int[size];
+			mask = size - 1;
+		}
+
+		void record(long cycle, int pin, int level) {
+			int at = (int) written & mask;
+			cycles[at] = cycle;
+			pins[at] = pin;
+			levels[at] = level;
+			written++;
+		}
+
+		public int size() {
+			return (int) Math.min(written, cycles.length);
+		}
+
+		// Changes that were overwritten by later ones
+		public long dropped() {
+			return written - size();
+		}
+
+		private int at(int i) {
+			return (int) (written - size() + i) & mask;
+		}
+
+		public long cycle(int i) {
+			return cycles[at(i)];
+		}
+
+		// The number of the pin, or -1 for a pin known only by its name
+		public int pin(int i) {
+			int pin = pins[at(i)];
+			return pin < PINS ? pin : -1;
+		}
+
+		// The pin's number, or its name
+		public String name(int i) {
+			int pin = pins[at(i)];
+			return pin < PINS ? Integer.toString(pin) : symbols.name(pin - PINS);
+		}
+
+		public int level(int i) {
+			return levels[at(i)];
+		}
+
+		public void clear() {
+			written = 0;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder out = new StringBuilder();
+			for (int i = 0; i < size(); i++) {
+				out.append(cycle(i)).append(' ').append(name(i)).append(' ')
+						.append(level(i)).append('\n');
+			}
+			return out.toString();
+		}
+	}
+
+	/**
+	 * Lays the program out as three functions: the top level statements,
+	 * setUp and Loop. Expressions push their operands and leave one value on
+	 * the stack. Break and Continue jump to the end or the step of the
+	 * innermost For; their sites are kept on a stack and patched when the
+	 * loop is closed. Return ends the function, and Goto has no function to
+	 * go to, so it does nothing.
+	 */
+	class Assembler implements Arduino.Visitor<Void> {
+		int[] code = new int[64];
+		int size;
+		int globals;
+		int setup;
+		int loop;
+		int maxStack;
+		private int depth;
+		// jumps waiting for their loop to close; continues are stored as ~site
+		private int[] jumps = new int[8];
+		private int jumpCount;
+		private int loopDepth;
+
+		private void emit(int... words) {
+			if (size + words.length > code.length) {
+				code = Arrays.copyOf(code, Math.max(code.length * 2, size
+						+ words.length));
+			}
+			for (int word : words) {
+				code[size++] = word;
+			}
+		}
+
+		private int symbol(Arduino.Id id) {
+			return symbols.symbol(id);
+		}
+
+		private void push() {
+			depth++;
+			maxStack = Math.max(maxStack, depth);
+		}
+
+		private void jump(int site) {
+			if (jumpCount == jumps.length) {
+				jumps = Arrays.copyOf(jumps, jumpCount * 2);
+			}
+			jumps[jumpCount++] = site;
+			emit(JUMP, -1);
+		}
+
+		@Override
+		public Void visit(Arduino.Program program) {
+			Arduino.Sequence body = (Arduino.Sequence) program.body;
+			globals = size;
+			for (int i = 0; i < body.size(); i++) {
+				Arduino.Node child = body.get(i);
+				if (!(child instanceof Arduino.setUp || child instanceof Arduino.Loop)) {
+					child.accept(this);
+				}
+			}
+			emit(END);
+			setup = size;
+			for (int i = 0; i < body.size(); i++) {
+				Arduino.Node child = body.get(i);
+				if (child instanceof Arduino.setUp) {
+					((Arduino.setUp) child).body.accept(this);
+				}
+			}
+			emit(END);
+			loop = size;
+			for (int i = 0; i < body.size(); i++) {
+				Arduino.Node child = body.get(i);
+				if (child instanceof Arduino.Loop) {
+					((Arduino.Loop) child).body.accept(this);
+				}
+			}
+			emit(END);
+			return null;
+		}
+
+		// Blocks nested below the top level run where they appear
+		@Override
+		public Void visit(Arduino.Loop loop) {
+			loop.body.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.setUp setUp) {
+			setUp.body.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.forLoop forLoop) {
+			int symbol = symbol(forLoop.id);
+			int max = forLoop.maxValue.n;
+			int head = size;
+			emit(FOR, symbol, forLoop.initValue.n, max, -1);
+			int mark = jumpCount;
+			loopDepth++;
+			forLoop.body.accept(this);
+			loopDepth--;
+			int next = size;
+			emit(NEXT, symbol, max, head + 5);
+			code[head + 4] = size;
+			while (jumpCount > mark) {
+				int site = jumps[--jumpCount];
+				if (site < 0) {
+					code[~site + 1] = next;
+				} else {
+					code[site + 1] = size;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Assign assign) {
+			if (assign.value instanceof Arduino.Number) {
+				emit(SET, symbol(assign.variable),
+						(short) ((Arduino.Number) assign.value).n);
+			} else {
+				assign.value.accept(this);
+				emit(STORE, symbol(assign.variable));
+				depth--;
+			}
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.remainder remainder) {
+			remainder.firstNumber.accept(this);
+			remainder.secNumber.accept(this);
+			emit(MOD, STORE, symbol((Arduino.Id) remainder.id));
+			depth -= 2;
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.pinMode pinMode) {
+			emit(MODE, symbol(pinMode.predicate),
+					SymbolTable.parseMode(pinMode.value.value));
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.digitalWrite digitalWrite) {
+			emit(DIGITAL_WRITE, symbol(digitalWrite.predicate),
+					digitalWrite.value instanceof Arduino.HIGH ? 1 : 0);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.analogWrite analogWrite) {
+			int value = Math.max(0, Math.min(255, analogWrite.value.n));
+			emit(ANALOG_WRITE, symbol(analogWrite.predicate), value);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.digitalRead digitalRead) {
+			emit(DIGITAL_READ, symbol(digitalRead.id));
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.analogRead analogRead) {
+			emit(ANALOG_READ, symbol(analogRead.id));
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Break break1) {
+			if (loopDepth > 0) {
+				jump(size);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Continue continue1) {
+			if (loopDepth > 0) {
+				jump(~size);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Return return1) {
+			emit(END);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Goto goto1) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Number num) {
+			emit(PUSH, (short) num.n);
+			push();
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Id id) {
+			emit(LOAD, symbol(id));
+			push();
+			return null;
+		}
+
+		private Void binary(int instruction, Arduino.Operator op) {
+			op.left.accept(this);
+			op.right.accept(this);
+			emit(instruction);
+			depth--;
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Plus op) {
+			return binary(ADD, op);
+		}
+
+		@Override
+		public Void visit(Arduino.Minus op) {
+			return binary(SUB, op);
+		}
+
+		@Override
+		public Void visit(Arduino.Times op) {
+			return binary(MUL, op);
+		}
+
+		@Override
+		public Void visit(Arduino.Divide op) {
+			return binary(DIV, op);
+		}
+
+		private Void unsupported(Arduino.Node node) {
+			throw new IllegalArgumentException("cannot simulate "
+					+ node.getClass().getSimpleName());
+		}
+
+		@Override
+		public Void visit(Arduino.Operator op) {
+			return unsupported(op);
+		}
+
+		@Override
+		public Void visit(Arduino.Branch branch) {
+			return unsupported(branch);
+		}
+
+		@Override
+		public Void visit(Arduino.Type type) {
+			return unsupported(type);
+		}
+
+		@Override
+		public Void visit(Arduino.HIGH high) {
+			return unsupported(high);
+		}
+
+		@Override
+		public Void visit(Arduino.LOW low) {
+			return unsupported(low);
+		}
+
+		@Override
+		public Void visit(Arduino.IOvalue iOvalue) {
+			return unsupported(iOvalue);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		long count = 1000000;
+		boolean printTrace = false;
+		boolean bytecode = true;
+		String file = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-n") && i + 1 < args.length) {
+				count = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-trace")) {
+				printTrace = true;
+			} else if (args[i].equals("-interpret")) {
+				bytecode = false;
+			} else {
+				file = args[i];
+			}
+		}
+		if (file == null) {
+			System.err
+					.println("Usage: java Simulator [-n loops] [-trace] [-interpret] file");
+			System.exit(2);
+		}
+		String source = new String(Files.readAllBytes(Paths.get(file)),
+				StandardCharsets.UTF_8);
+		Parser.Context parse = new Parser().context(source);
+		Arduino.Program program = parse.parseProgram();
+		if (parse.failed()) {
+			System.err.println(parse.errorMessage());
+			System.exit(1);
+		}
+
+		Simulator simulator = new Simulator(program, 4096, bytecode);
+		long begin = System.nanoTime();
+		simulator.run(count);
+		long nanos = System.nanoTime() - begin;
+
+		if (printTrace) {
+			System.out.print(simulator.trace());
+		}
+		SymbolTable symbols = simulator.symbols();
+		for (int s = 0; s < symbols.size(); s++) {
+			if (symbols.has(s, SymbolTable.DIGITAL_WRITE
+					| SymbolTable.ANALOG_WRITE)) {
+				System.out.println(symbols.name(s) + " = "
+						+ simulator.level(symbols.name(s)));
+			}
+		}
+		System.out.println(String.format(
+				"%d loops, %d cycles (%.3f s simulated) in %.3f s, %.0f loops/s, %d changes (%d dropped)",
+				simulator.loops(), simulator.clock(), simulator.clock()
+						/ (double) CLOCK_HZ, nanos / 1e9, count / (nanos / 1e9),
+				simulator.trace().size() + simulator.trace().dropped(),
+				simulator.trace().dropped()));
+	}
+}
@@ -0,0 +1,460 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Compiles a script of any size to a Writer without holding the whole of it.
+ * The calling thread reads the source a statement at a time and parses each
+ * top level statement, and each statement in the body of a top level Setup
+ * or Loop, on its own. A block below those, such as a For, is gathered up to
+ * its End and parsed whole, so the heap grows with the largest such block
+ * rather than with the input. The nodes go in batches through a bounded
+ * queue to a writer thread that compiles, writes and drops them, so parsing
+ * and emitting overlap.
+ *
+ * A file is read twice: once for the variables that must be declared at the
+ * top of the sketch, as compiling the whole Program declares them, and once
+ * to write the code. A Reader can only be read once, so from one a variable
+ * first assigned inside a block is declared in that block, does not keep
+ * its value outside it, and is warned about.
+ *
+ * Passes see one statement at a time, so LoopOptimizer does not move code out
+ * of a Loop into setup() or globals as it does for a whole Program, and
+ * PeepholeOptimizer only drops what is redundant within a nested block; the
+ * code does what the whole Program's does, but is not always the same.
+ * Diagnostics carry offsets into the whole input. An End inside a Setup or
+ * Loop body that closes nothing open is reported and skipped, as the parser
+ * does.
+ */
+public class StreamingCompiler {
+	// Items handed over at once, and batches parsed ahead of the writer at most
+	static final int BATCH = 128;
+	static final int QUEUE = 8;
+
+	private final Parser parser;
+	private final Arduino.ArduinoCompiler compiler;
+
+	public StreamingCompiler() {
+		this(new Parser(), new Arduino.ArduinoCompiler());
+	}
+
+	public StreamingCompiler(Parser parser, Arduino.ArduinoCompiler compiler) {
+		this.parser = parser;
+		this.compiler = compiler;
+	}
+
+	// Outcome of compile
+	public static class Result {
+		public final int errors;
+		public final String errorMessage;
+		// statements and nested blocks handed to the writer
+		public final long statements;
+
+		Result(int errors, String errorMessage, long statements) {
+			this.errors = errors;
+			this.errorMessage = errorMessage;
+			this.statements = statements;
+		}
+
+		public boolean failed() {
+			return errors > 0;
+		}
+	}
+
+	public Result compile(Reader in, Writer out) throws IOException {
+		return compile(in, out, Diagnostics.NONE);
+	}
+
+	/**
+	 * Compile everything in to out in one pass. Code is written as it is
+	 * compiled, so when the result has errors out holds code for the
+	 * statements that parsed. Whatever compiling throws on the writer thread
+	 * is thrown here, once the reader has stopped.
+	 */
+	public Result compile(Reader in, Writer out, Diagnostics diagnostics)
+			throws IOException {
+		Result result = run(in, new Arduino.ArduinoCompiler.Generator(
+				new Emitter(out), diagnostics), false, diagnostics);
+		out.flush();
+		return result;
+	}
+
+	public Result compile(Path source, Writer out) throws IOException {
+		return compile(source, out, Diagnostics.NONE);
+	}
+
+	// Compile the file to out, gathering its globals in a first pass
+	public Result compile(Path source, Writer out, Diagnostics diagnostics)
+			throws IOException {
+		Arduino.ArduinoCompiler.Generator generator = new Arduino.ArduinoCompiler.Generator(
+				new Emitter(out));
+		try (Reader in = Files.newBufferedReader(source)) {
+			run(in, generator, true, Diagnostics.NONE);
+		}
+		generator.declareGlobals();
+		Result result;
+		try (Reader in = Files.newBufferedReader(source)) {
+			result = run(in, generator, false, diagnostics);
+		}
+		out.flush();
+		return result;
+	}
+
+	// One pass over in, gathering the globals into generator when scanning
+	// and otherwise writing the code with it
+	private Result run(Reader in, Arduino.ArduinoCompiler.Generator generator,
+			boolean scanning, Diagnostics diagnostics) throws IOException {
+		BlockingQueue<Item[]> queue = new ArrayBlockingQueue<Item[]>(QUEUE);
+		Writing writing = new Writing(queue, generator, scanning);
+		Thread thread = new Thread(writing, "StreamingCompiler writer");
+		thread.setDaemon(true);
+		thread.start();
+		Reading reading = new Reading(queue, writing, diagnostics);
+		try {
+			try {
+				reading.read(in);
+			} finally {
+				reading.flush();
+				queue.put(Item.DONE);
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while compiling");
+		}
+		if (writing.failure != null) {
+			if (writing.failure instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) writing.failure).getCause();
+			}
+			if (writing.failure instanceof Error) {
+				throw (Error) writing.failure;
+			}
+			throw (RuntimeException) writing.failure;
+		}
+		return new Result(reading.errors, reading.message, reading.statements);
+	}
+
+	// One thing for the writer: a block header, a node or a block end
+	static class Item {
+		static final Item CLOSE = new Item(null, null);
+		// the batch after the last
+		static final Item[] DONE = new Item[0];
+
+		final String header;
+		final Arduino.Node node;
+
+		Item(String header, Arduino.Node node) {
+			this.header = header;
+			this.node = node;
+		}
+	}
+
+	// Takes batches off the queue until DONE, compiling nodes with the
+	// generator, or only scanning them for globals. After a failure, an Error
+	// such as running out of memory included, it carries on taking batches so
+	// the reader never blocks.
+	class Writing implements Runnable {
+		private final BlockingQueue<Item[]> queue;
+		// one for the whole input, so a variable is declared only once
+		private final Arduino.ArduinoCompiler.Generator generator;
+		private final boolean scanning;
+		// Setup and Loop blocks open while scanning
+		private int inside;
+		volatile Throwable failure;
+
+		Writing(BlockingQueue<Item[]> queue,
+				Arduino.ArduinoCompiler.Generator generator, boolean scanning) {
+			this.queue = queue;
+			this.generator = generator;
+			this.scanning = scanning;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Item[] batch;
+				while ((batch = queue.take()) != Item.DONE) {
+					try {
+						for (int i = 0; i < batch.length && batch[i] != null
+								&& failure == null; i++) {
+							Item item = batch[i];
+							if (scanning) {
+								scan(item);
+							} else if (item.header != null) {
+								generator.open(item.header);
+							} else if (item.node != null) {
+								compiler.compile(item.node, generator);
+							} else {
+								generator.close();
+							}
+						}
+					} catch (Throwable e) {
+						failure = e;
+					}
+				}
+			} catch (InterruptedException e) {
+				failure = new IllegalStateException("writer interrupted", e);
+			}
+		}
+
+		// The node as it will be compiled, so what passes remove is not counted
+		private void scan(Item item) {
+			if (item.header != null) {
+				inside++;
+			} else if (item.node != null) {
+				generator.scan(compiler.optimize(item.node), inside > 0);
+			} else {
+				inside--;
+			}
+		}
+	}
+
+	/**
+	 * Splits the input into statements and the statements into what is parsed
+	 * on its own. open holds the End keywords of the blocks the reader is in;
+	 * a block entered below a top level Setup or Loop is collected in unit
+	 * until the End that brings the depth back to unitDepth.
+	 */
+	class Reading {
+		private final BlockingQueue<Item[]> queue;
+		private final Writing writing;
+		private Item[] batch = new Item[BATCH];
+		private int batched;
+		private final Diagnostics diagnostics;
+		private final Shifted shifted;
+		private final StringBuilder statement = new StringBuilder();
+		private long statementBase;
+		private final StringBuilder unit = new StringBuilder();
+		private long unitBase = -1;
+		private int unitDepth;
+		private Lexer.Keyword[] open = new Lexer.Keyword[8];
+		private int depth;
+		private long headerStart;
+		private long headerEnd;
+		int errors;
+		String message;
+		long statements;
+
+		Reading(BlockingQueue<Item[]> queue, Writing writing,
+				Diagnostics diagnostics) {
+			this.queue = queue;
+			this.writing = writing;
+			this.diagnostics = diagnostics;
+			this.shifted = diagnostics == Diagnostics.NONE ? null : new Shifted(
+					diagnostics);
+		}
+
+		void read(Reader in) throws IOException, InterruptedException {
+			char[] buffer = new char[8192];
+			long offset = 0;
+			int n;
+			// once the writer has failed the rest would only be thrown away
+			while (writing.failure == null && (n = in.read(buffer)) >= 0) {
+				int from = 0;
+				for (int i = 0; i < n; i++) {
+					if (buffer[i] == '.') {
+						statement.append(buffer, from, i + 1 - from);
+						statement(false);
+						statementBase = offset + i + 1;
+						statement.setLength(0);
+						from = i + 1;
+					}
+				}
+				statement.append(buffer, from, n - from);
+				offset += n;
+			}
+			statement(true);
+			if (unitBase >= 0) {
+				// the parser reports the End it is missing
+				flushUnit();
+			}
+			if (depth > 0) {
+				error("Error @ missing End " + open[0].text, headerStart, headerEnd);
+				send(Item.CLOSE);
+			}
+		}
+
+		private void send(Item item) throws InterruptedException {
+			batch[batched++] = item;
+			if (batched == BATCH) {
+				flush();
+			}
+		}
+
+		// Hand over the items batched so far; a short batch ends at a null
+		void flush() throws InterruptedException {
+			if (batched > 0) {
+				queue.put(batch);
+				batch = new Item[BATCH];
+				batched = 0;
+			}
+		}
+
+		// Handle the statement just read; last is the text after the last period
+		private void statement(boolean last) throws InterruptedException {
+			int length = statement.length();
+			int p = ParallelParser.skipSpace(statement, 0, length);
+			if (p == length) {
+				if (unitBase >= 0) {
+					unit.append(statement);
+				}
+				return;
+			}
+			int period = last ? length : length - 1;
+			int word = ParallelParser.wordEnd(statement, p, period);
+			Lexer.Keyword first = word > p ? Lexer.lookup(statement, p, word)
+					: null;
+			Lexer.Keyword opens = null;
+			Lexer.Keyword closing = null;
+			if (first == Lexer.Keyword.FOR) {
+				opens = Lexer.Keyword.FORLOOP;
+			} else if ((first == Lexer.Keyword.SETUP || first == Lexer.Keyword.LOOP)
+					&& ParallelParser.skipSpace(statement, word, period) == period) {
+				opens = first;
+			} else if (first == Lexer.Keyword.END) {
+				int second = ParallelParser.skipSpace(statement, word, period);
+				int secondEnd = ParallelParser.wordEnd(statement, second, period);
+				if (secondEnd > second
+						&& ParallelParser.skipSpace(statement, secondEnd, period) == period) {
+					closing = Lexer.lookup(statement, second, secondEnd);
+				}
+			}
+
+			if (unitBase >= 0) {
+				if (first == Lexer.Keyword.END) {
+					int closes = closes(closing, unitDepth);
+					if (closes >= 0) {
+						unit.append(statement);
+						depth = closes;
+						if (depth == unitDepth) {
+							flushUnit();
+						}
+						return;
+					}
+					if (closes(closing, 0) < 0) {
+						// an error the parser reports within the unit
+						unit.append(statement);
+						return;
+					}
+					// closes the Setup or Loop the unit is in; the parser
+					// reports the End the unit is missing
+					flushUnit();
+				} else {
+					unit.append(statement);
+					push(opens);
+					return;
+				}
+			}
+
+			if (depth > 0 && first == Lexer.Keyword.END && closing == open[0]) {
+				depth = 0;
+				send(Item.CLOSE);
+			} else if (depth == 0
+					&& (opens == Lexer.Keyword.SETUP || opens == Lexer.Keyword.LOOP)) {
+				headerStart = statementBase + p;
+				headerEnd = statementBase + period;
+				// the parser traces a block before anything in its body
+				diagnostics.trace(opens == Lexer.Keyword.SETUP ? "setUp" : "Loop",
+						(int) headerStart, (int) headerEnd);
+				push(opens);
+				send(new Item(opens == Lexer.Keyword.SETUP
+						? Arduino.ArduinoCompiler.Generator.SETUP
+						: Arduino.ArduinoCompiler.Generator.LOOP, null));
+			} else if (opens != null) {
+				unitBase = statementBase;
+				unitDepth = depth;
+				unit.append(statement);
+				push(opens);
+			} else {
+				parse(statement, statementBase);
+			}
+		}
+
+		// Depth the End of closing returns to, looking no further out than
+		// floor, or -1 when it closes none of those blocks
+		private int closes(Lexer.Keyword closing, int floor) {
+			for (int i = depth - 1; i >= floor; i--) {
+				if (open[i] == closing) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void push(Lexer.Keyword opens) {
+			if (opens == null) {
+				return;
+			}
+			if (depth == open.length) {
+				open = Arrays.copyOf(open, depth * 2);
+			}
+			open[depth++] = opens;
+		}
+
+		// Parse the unit, leaving the blocks it opened whether or not it closed
+		// them
+		private void flushUnit() throws InterruptedException {
+			parse(unit, unitBase);
+			unit.setLength(0);
+			unitBase = -1;
+			depth = unitDepth;
+		}
+
+		private void parse(CharSequence text, long base)
+				throws InterruptedException {
+			Diagnostics to = Diagnostics.NONE;
+			if (shifted != null) {
+				shifted.base = (int) base;
+				to = shifted;
+			}
+			Parser.Context parse = parser.context(text, to);
+			Arduino.Sequence parsed = parse.parseSequence();
+			if (parse.failed()) {
+				errors += parse.errors();
+				if (message == null) {
+					message = parse.errorMessage();
+				}
+			}
+			for (int i = 0; i < parsed.size(); i++) {
+				send(new Item(null, parsed.get(i)));
+				statements++;
+			}
+		}
+
+		private void error(String text, long start, long end) {
+			if (errors++ == 0) {
+				message = text;
+			}
+			diagnostics.error(text, (int) start, (int) end);
+		}
+	}
+
+	// Passes diagnostics on with their offsets moved by base
+	static class Shifted implements Diagnostics {
+		private final Diagnostics to;
+		int base;
+
+		Shifted(Diagnostics to) {
+			this.to = to;
+		}
+
+		public void trace(String event, int start, int end) {
+			to.trace(event, base + start, base + end);
+		}
+
+		public void warning(String message, int start, int end) {
+			to.warning(message, base + start, base + end);
+		}
+
+		public void error(String message, int start, int end) {
+			to.error(message, base + start, base + end);
+		}
+	}
+}
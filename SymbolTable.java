@@ -0,0 +1,446 @@
+import java.util.Arrays;
+
+/**
+ * Identifiers of a program interned to dense int ids, with what the program
+ * does with each of them: whether it is an int variable, the pin mode it was
+ * given, and whether it is written or read as a pin. Passes look a name up
+ * once and then index these arrays by id instead of comparing strings.
+ *
+ * Names are interned straight from a character range, so the parser only
+ * creates a String, and an Id, the first time a name is seen. An Id keeps
+ * the symbol it was last given, so a pass looking it up again in the same
+ * table compares one name instead of hashing it.
+ *
+ * A variable is constant only when it is assigned a literal once, by a top
+ * level statement, and nothing at the top level uses it before that; the top
+ * level runs before setUp and Loop, so their uses come after.
+ */
+public class SymbolTable {
+	// Declared types
+	public static final int UNDECLARED = 0;
+	public static final int INT = 1;
+
+	// Pin modes
+	public static final int NO_MODE = 0;
+	public static final int INPUT = 1;
+	public static final int OUTPUT = 2;
+	public static final int INPUT_PULLUP = 3;
+
+	// Uses, as bit flags
+	public static final int ASSIGNED = 1;
+	public static final int LOOP_VARIABLE = 2;
+	public static final int MODE_SET = 4;
+	public static final int DIGITAL_WRITE = 8;
+	public static final int ANALOG_WRITE = 16;
+	public static final int READ = 32;
+	// assigned something other than a literal, so its value is not known
+	public static final int COMPUTED = 64;
+	// used at the top level before it is assigned
+	public static final int EARLY = 128;
+	// assigned inside a block, which may run late, often or never
+	public static final int NESTED = 256;
+
+	private static final int NONE = -1;
+
+	private String[] names = new String[16];
+	private Arduino.Id[] ids = new Arduino.Id[16];
+	private int[] types = new int[16];
+	private int[] modes = new int[16];
+	private int[] uses = new int[16];
+	private int[] assignments = new int[16];
+	private int[] values = new int[16];
+	private int size;
+	// open addressing table of symbol ids, keyed by the hash of the name
+	private int[] slots = emptySlots(32);
+
+	public int size() {
+		return size;
+	}
+
+	public String name(int symbol) {
+		return names[symbol];
+	}
+
+	// One shared Id node per name
+	public Arduino.Id id(int symbol) {
+		return ids[symbol];
+	}
+
+	public int type(int symbol) {
+		return types[symbol];
+	}
+
+	public int mode(int symbol) {
+		return modes[symbol];
+	}
+
+	public boolean has(int symbol, int use) {
+		return (uses[symbol] & use) != 0;
+	}
+
+	// A variable assigned exactly once before any use, so its value is known
+	// everywhere
+	public boolean isConstant(int symbol) {
+		return assignments[symbol] == 1
+				&& (uses[symbol] & (LOOP_VARIABLE | COMPUTED | EARLY | NESTED)) == 0;
+	}
+
+	public int value(int symbol) {
+		return values[symbol];
+	}
+
+	// Id for a name, or -1 if the program never mentions it
+	public int lookup(CharSequence name) {
+		return find(name, 0, name.length());
+	}
+
+	public int intern(CharSequence name) {
+		return intern(name, 0, name.length());
+	}
+
+	// Id for the name of an Id, adding it if new; the Id remembers it
+	public int symbol(Arduino.Id id) {
+		int symbol = id.symbol;
+		if (symbol >= 0 && symbol < size && names[symbol].equals(id.id)) {
+			return symbol;
+		}
+		symbol = intern(id.id);
+		id.symbol = symbol;
+		return symbol;
+	}
+
+	// Id for the name between start and end, adding it if new
+	public int intern(CharSequence source, int start, int end) {
+		int found = find(source, start, end);
+		if (found != NONE) {
+			return found;
+		}
+		if (size == names.length) {
+			int length = size * 2;
+			names = Arrays.copyOf(names, length);
+			ids = Arrays.copyOf(ids, length);
+			types = Arrays.copyOf(types, length);
+			modes = Arrays.copyOf(modes, length);
+			uses = Arrays.copyOf(uses, length);
+			assignments = Arrays.copyOf(assignments, length);
+			values = Arrays.copyOf(values, length);
+		}
+		if (size * 2 >= slots.length) {
+			rehash(slots.length * 2);
+		}
+		String name = source.subSequence(start, end).toString();
+		int symbol = size++;
+		names[symbol] = name;
+		ids[symbol] = new Arduino.Id(name, symbol);
+		place(symbol, hash(name, 0, name.length()));
+		return symbol;
+	}
+
+	private int find(CharSequence source, int start, int end) {
+		int mask = slots.length - 1;
+		int slot = hash(source, start, end) & mask;
+		while (slots[slot] != NONE) {
+			String name = names[slots[slot]];
+			if (matches(name, source, start, end)) {
+				return slots[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NONE;
+	}
+
+	private void place(int symbol, int hash) {
+		int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (slots[slot] != NONE) {
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = symbol;
+	}
+
+	private void rehash(int length) {
+		slots = emptySlots(length);
+		for (int i = 0; i < size; i++) {
+			place(i, hash(names[i], 0, names[i].length()));
+		}
+	}
+
+	private static int[] emptySlots(int length) {
+		int[] slots = new int[length];
+		Arrays.fill(slots, NONE);
+		return slots;
+	}
+
+	private static int hash(CharSequence s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + s.charAt(i);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean matches(String name, CharSequence s, int start,
+			int end) {
+		if (name.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) != s.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static int parseMode(String mode) {
+		if (mode.equalsIgnoreCase("INPUT")) {
+			return INPUT;
+		} else if (mode.equalsIgnoreCase("OUTPUT")) {
+			return OUTPUT;
+		} else if (mode.equalsIgnoreCase("INPUT_PULLUP")) {
+			return INPUT_PULLUP;
+		}
+		return NO_MODE;
+	}
+
+	/**
+	 * Build the table for a program, reporting writes to pins that were never
+	 * given a pinMode anywhere in the program. The tree carries no source
+	 * offsets, so those warnings have an empty span.
+	 */
+	public static SymbolTable build(Arduino.Program program,
+			Diagnostics diagnostics) {
+		SymbolTable table = new SymbolTable();
+		program.accept(table.new Builder());
+		for (int s = 0; s < table.size; s++) {
+			if (table.has(s, DIGITAL_WRITE | ANALOG_WRITE)
+					&& !table.has(s, MODE_SET)) {
+				diagnostics.warning("Write to " + table.names[s]
+						+ " which was never given a pinMode", -1, -1);
+			}
+		}
+		return table;
+	}
+
+	// Records declarations and pin use for every identifier in the tree
+	class Builder implements Arduino.Visitor<Void> {
+		// setUps and Loops, and blocks of any kind, the walk is inside
+		private int functions;
+		private int blocks;
+
+		private int use(Arduino.Id id, int use) {
+			int symbol = symbol(id);
+			uses[symbol] |= use;
+			if (use != ASSIGNED) {
+				used(symbol);
+			}
+			return symbol;
+		}
+
+		private void used(int symbol) {
+			if (functions == 0 && assignments[symbol] == 0) {
+				uses[symbol] |= EARLY;
+			}
+		}
+
+		private void assigned(int symbol) {
+			if (blocks > 0) {
+				uses[symbol] |= NESTED;
+			}
+			assignments[symbol]++;
+		}
+
+		private void block(Arduino.Node body, int functions) {
+			this.functions += functions;
+			blocks++;
+			body.accept(this);
+			blocks--;
+			this.functions -= functions;
+		}
+
+		@Override
+		public Void visit(Arduino.Program program) {
+			program.body.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Loop loop) {
+			block(loop.body, 1);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.setUp setUp) {
+			block(setUp.body, 1);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.forLoop forLoop) {
+			int symbol = use(forLoop.id, LOOP_VARIABLE);
+			types[symbol] = INT;
+			block(forLoop.body, 0);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Assign assign) {
+			int symbol = use(assign.variable, ASSIGNED);
+			types[symbol] = INT;
+			if (assign.value instanceof Arduino.Number) {
+				if (assignments[symbol] == 0) {
+					// an AVR int, as the board and the simulator hold it
+					values[symbol] = (short) ((Arduino.Number) assign.value).n;
+				}
+			} else {
+				uses[symbol] |= COMPUTED;
+				assign.value.accept(this);
+			}
+			assigned(symbol);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.remainder remainder) {
+			if (remainder.id instanceof Arduino.Id) {
+				int symbol = use((Arduino.Id) remainder.id, ASSIGNED);
+				types[symbol] = INT;
+				if (remainder.firstNumber instanceof Arduino.Number
+						&& remainder.secNumber instanceof Arduino.Number
+						&& ((Arduino.Number) remainder.secNumber).n != 0) {
+					if (assignments[symbol] == 0) {
+						values[symbol] = Simulator.remainder(
+								(short) ((Arduino.Number) remainder.firstNumber).n,
+								(short) ((Arduino.Number) remainder.secNumber).n);
+					}
+				} else {
+					uses[symbol] |= COMPUTED;
+					remainder.firstNumber.accept(this);
+					remainder.secNumber.accept(this);
+				}
+				assigned(symbol);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.pinMode pinMode) {
+			int symbol = use(pinMode.predicate, MODE_SET);
+			modes[symbol] = parseMode(pinMode.value.value);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.digitalWrite digitalWrite) {
+			use(digitalWrite.predicate, DIGITAL_WRITE);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.analogWrite analogWrite) {
+			use(analogWrite.predicate, ANALOG_WRITE);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.digitalRead digitalRead) {
+			use(digitalRead.id, READ);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.analogRead analogRead) {
+			use(analogRead.id, READ);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Branch branch) {
+			branch.predicate.accept(this);
+			block(branch.ifBranch, 0);
+			if (branch.elseBranch != null) {
+				block(branch.elseBranch, 0);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Id id) {
+			used(symbol(id));
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Operator op) {
+			op.left.accept(this);
+			op.right.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Plus op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		@Override
+		public Void visit(Arduino.Minus op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		@Override
+		public Void visit(Arduino.Times op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		@Override
+		public Void visit(Arduino.Divide op) {
+			return visit((Arduino.Operator) op);
+		}
+
+		@Override
+		public Void visit(Arduino.Number num) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Type type) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.HIGH high) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.LOW low) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.IOvalue iOvalue) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Break break1) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Continue continue1) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Return return1) {
+			return null;
+		}
+
+		@Override
+		public Void visit(Arduino.Goto goto1) {
+			return null;
+		}
+	}
+}
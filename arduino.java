@@ -2,6 +2,8 @@ import java.applet.Applet;
 import java.awt.Button;
 import java.awt.TextField;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.applet.*;
 import java.awt.*;
 import java.awt.event.*;
@@ -19,7 +21,7 @@ import Break.remainder; **/
 
 public class Arduino extends Applet {
 	// Create an interface Node to reuse
-	public interface Node {
+	public sealed interface Node permits NodeBase, Statement, Expression {
 		<T> T accept(Visitor<T> v);
 	}
 
@@ -81,10 +83,11 @@ public class Arduino extends Applet {
 
 	}
 
-	public static class Program implements Node {
+	public static final class Program extends NodeBase {
 		public Node body;
 
 		Program(Sequence sequence) {
+			super(PROGRAM);
 			body = sequence;
 		}
 
@@ -93,9 +96,13 @@ public class Arduino extends Applet {
 		}
 	}
 
-	public class Sequence implements Node {
+	public static non-sealed class Sequence extends NodeBase {
 		ArrayList<Node> children = new ArrayList<Node>();
 
+		public Sequence() {
+			super(SEQUENCE);
+		}
+
 		@Override
 		public <T> T accept(Visitor<T> v) {
 			for (Node child : children) {
@@ -107,24 +114,83 @@ public class Arduino extends Applet {
 		public void addNode(Node n) {
 			children.add(n);
 		}
+
+		public int size() {
+			return children.size();
+		}
+
+		public Node get(int i) {
+			return children.get(i);
+		}
 	}
 
 	// Create interface Statement
-	public interface Statement extends Node {
+	public sealed interface Statement extends Node {
 	}
 
 	// Create interface Expression for condition cases
-	public interface Expression extends Node {
+	public sealed interface Expression extends Node {
+	}
+
+	/**
+	 * Every node class extends NodeBase and no other class may, so kind says
+	 * exactly which class a node is and a NodeSwitch can dispatch on it with
+	 * a switch instead of a virtual call.
+	 */
+	public static abstract sealed class NodeBase implements Node {
+		public static final int PROGRAM = 0;
+		public static final int SEQUENCE = 1;
+		public static final int ID = 2;
+		public static final int IO_VALUE = 3;
+		public static final int TYPE = 4;
+		public static final int ASSIGN = 5;
+		public static final int BRANCH = 6;
+		public static final int LOOP = 7;
+		public static final int FOR_LOOP = 8;
+		public static final int SET_UP = 9;
+		public static final int PIN_MODE = 10;
+		public static final int DIGITAL_WRITE = 11;
+		public static final int ANALOG_WRITE = 12;
+		public static final int DIGITAL_READ = 13;
+		public static final int ANALOG_READ = 14;
+		public static final int BREAK = 15;
+		public static final int CONTINUE = 16;
+		public static final int RETURN = 17;
+		public static final int GOTO = 18;
+		public static final int REMAINDER = 19;
+		public static final int HIGH_VALUE = 20;
+		public static final int LOW_VALUE = 21;
+		public static final int NUMBER = 22;
+		public static final int OPERATOR = 23;
+		public static final int PLUS = 24;
+		public static final int MINUS = 25;
+		public static final int TIMES = 26;
+		public static final int DIVIDE = 27;
+
+		public final int kind;
+
+		NodeBase(int kind) {
+			this.kind = kind;
+		}
 	}
 
 	// Create interface ID for variable names
-	public static class Id implements Expression {
+	public static final class Id extends NodeBase implements Expression {
 		String id;
+		// The name's symbol in the SymbolTable that last looked it up, or -1.
+		// Trees are shared, so a table checks the name before trusting it.
+		int symbol = -1;
 
 		public Id(String id) {
+			super(ID);
 			this.id = id;
 		}
 
+		Id(String id, int symbol) {
+			this(id);
+			this.symbol = symbol;
+		}
+
 		public <T> T accept(Visitor<T> v) {
 			return v.visit(this);
 		}
@@ -135,10 +201,11 @@ public class Arduino extends Applet {
 	}
 
 	// Create interface IOvalue for variable names
-	public static class IOvalue implements Expression {
+	public static final class IOvalue extends NodeBase implements Expression {
 		String value;
 
 		public IOvalue(String value) {
+			super(IO_VALUE);
 			this.value = value;
 		}
 
@@ -152,10 +219,11 @@ public class Arduino extends Applet {
 	}
 
 	// Create interface Type for variable types
-	public static class Type implements Expression {
+	public static final class Type extends NodeBase implements Expression {
 		String type;
 
 		public Type(String type) {
+			super(TYPE);
 			this.type = type;
 		}
 
@@ -169,11 +237,12 @@ public class Arduino extends Applet {
 	}
 
 	// Create interface Assign for "is"
-	public static class Assign implements Statement {
+	public static final class Assign extends NodeBase implements Statement {
 		Id variable;
-		Number value;
+		Expression value;
 
-		public Assign(Id variable, Number value) {
+		public Assign(Id variable, Expression value) {
+			super(ASSIGN);
 			this.variable = variable;
 			this.value = value;
 		}
@@ -183,18 +252,19 @@ public class Arduino extends Applet {
 		}
 	}
 
-	public static Assign assign(Id var, Number val) {
+	public static Assign assign(Id var, Expression val) {
 		return new Assign(var, val);
 	}
 
 	// Create if/else Branch
-	public static class Branch implements Statement {
+	public static final class Branch extends NodeBase implements Statement {
 		Expression predicate;
 		Statement ifBranch;
 		Statement elseBranch;
 
 		// If Branch
 		public Branch(Expression p, Statement a) {
+			super(BRANCH);
 			predicate = p;
 			ifBranch = a;
 
@@ -202,6 +272,7 @@ public class Arduino extends Applet {
 
 		// If - Else Branch
 		public Branch(Expression p, Statement a, Statement b) {
+			super(BRANCH);
 			predicate = p;
 			ifBranch = a;
 			elseBranch = b;
@@ -224,10 +295,11 @@ public class Arduino extends Applet {
 	}
 
 	// Create Loop
-	public static class Loop implements Statement {
+	public static final class Loop extends NodeBase implements Statement {
 		Sequence body;
 
 		public Loop(Sequence body) {
+			super(LOOP);
 			this.body = body;
 		}
 
@@ -241,13 +313,14 @@ public class Arduino extends Applet {
 	}
 
 	// Create For Loop
-	public static class forLoop implements Statement {
+	public static final class forLoop extends NodeBase implements Statement {
 		Id id;
 		Number initValue;
 		Number maxValue;
 		Sequence body;
 
 		public forLoop(Id id, Number init, Number max, Sequence body) {
+			super(FOR_LOOP);
 			this.id = id;
 			initValue = init;
 			maxValue = max;
@@ -265,10 +338,11 @@ public class Arduino extends Applet {
 	}
 
 	// Create setUp function
-	public static class setUp implements Statement {
+	public static final class setUp extends NodeBase implements Statement {
 		Sequence body;
 
 		public setUp(Sequence body) {
+			super(SET_UP);
 			this.body = body;
 		}
 
@@ -282,11 +356,12 @@ public class Arduino extends Applet {
 	}
 
 	// Create pinMode
-	public static class pinMode implements Statement {
+	public static final class pinMode extends NodeBase implements Statement {
 		Id predicate;
 		IOvalue value;
 
 		public pinMode(Id p, IOvalue value) {
+			super(PIN_MODE);
 			predicate = p;
 			this.value = value;
 		}
@@ -301,11 +376,12 @@ public class Arduino extends Applet {
 	}
 
 	// Create digitalWrite
-	public static class digitalWrite implements Statement {
+	public static final class digitalWrite extends NodeBase implements Statement {
 		Id predicate;
 		Expression value;
 
 		public digitalWrite(Id p, Expression value) {
+			super(DIGITAL_WRITE);
 			predicate = p;
 			this.value = value;
 		}
@@ -320,11 +396,12 @@ public class Arduino extends Applet {
 	}
 
 	// Create analogWrite
-	public static class analogWrite implements Statement {
+	public static final class analogWrite extends NodeBase implements Statement {
 		Id predicate;
 		Number value;
 
 		public analogWrite(Id p, Number value) {
+			super(ANALOG_WRITE);
 			predicate = p;
 			this.value = value;
 		}
@@ -339,10 +416,11 @@ public class Arduino extends Applet {
 	}
 
 	// Create digitalRead
-	public static class digitalRead implements Statement {
+	public static final class digitalRead extends NodeBase implements Statement {
 		Id id;
 
 		public digitalRead(Id id) {
+			super(DIGITAL_READ);
 			this.id = id;
 		}
 
@@ -356,10 +434,11 @@ public class Arduino extends Applet {
 	}
 
 	// Create digitalRead
-	public static class analogRead implements Statement {
+	public static final class analogRead extends NodeBase implements Statement {
 		Id id;
 
 		public analogRead(Id p) {
+			super(ANALOG_READ);
 			id = p;
 		}
 
@@ -375,10 +454,11 @@ public class Arduino extends Applet {
 	//**********************************************************************************
 
 	// Create Break
-		public static class Break implements Statement {
+		public static final class Break extends NodeBase implements Statement {
 			Id syntax;
 
 			public Break(Id variable) {
+				super(BREAK);
 				this.syntax = variable;
 			}
 
@@ -392,10 +472,11 @@ public class Arduino extends Applet {
 		}
 
 		// Create Continue
-		public static class Continue implements Statement {
+		public static final class Continue extends NodeBase implements Statement {
 			Id variable;
 
 			public Continue(Id variable) {
+				super(CONTINUE);
 				this.variable = variable;
 			}
 
@@ -409,10 +490,11 @@ public class Arduino extends Applet {
 		}
 
 		// Create Return
-		public static class Return implements Statement {
+		public static final class Return extends NodeBase implements Statement {
 			Id variable;
 
 			public Return(Id variable) {
+				super(RETURN);
 				this.variable = variable;
 			}
 
@@ -426,10 +508,11 @@ public class Arduino extends Applet {
 		}
 
 		// Create Goto
-		public static class Goto implements Statement {
+		public static final class Goto extends NodeBase implements Statement {
 			Id variable;
 
 			public Goto(Id variable) {
+				super(GOTO);
 				this.variable = variable;
 			}
 
@@ -443,12 +526,13 @@ public class Arduino extends Applet {
 		}
 
 		// Create Remainder
-		public static class remainder implements Statement {
+		public static final class remainder extends NodeBase implements Statement {
 			Expression id;
 			Expression firstNumber;
 			Expression secNumber;
 
 			public remainder(Expression id, Expression firstNum, Expression secNum) {
+				super(REMAINDER);
 				this.id = id;
 				this.firstNumber = firstNum;
 				this.secNumber = secNum;
@@ -469,10 +553,11 @@ public class Arduino extends Applet {
 	//**********************************************************************************
 
 	// Create HIGH and LOW expression
-	public static class HIGH implements Expression {
+	public static final class HIGH extends NodeBase implements Expression {
 		int value;
 
 		public HIGH() {
+			super(HIGH_VALUE);
 			this.value = 1;
 		}
 
@@ -485,10 +570,11 @@ public class Arduino extends Applet {
 		return new HIGH();
 	}
 
-	public static class LOW implements Expression {
+	public static final class LOW extends NodeBase implements Expression {
 		int value;
 
 		public LOW() {
+			super(LOW_VALUE);
 			this.value = 0;
 		}
 
@@ -501,10 +587,11 @@ public class Arduino extends Applet {
 		return new LOW();
 	}
 
-	public static class Number implements Expression {
+	public static final class Number extends NodeBase implements Expression {
 		int n;
 
 		public Number(int n) {
+			super(NUMBER);
 			this.n = n;
 		}
 
@@ -517,11 +604,12 @@ public class Arduino extends Applet {
 		return new Number(n);
 	}
 
-	public static class Operator implements Expression {
+	public static sealed class Operator extends NodeBase implements Expression {
 		Expression left;
 		Expression right;
 
-		private Operator(Expression left, Expression right) {
+		private Operator(int kind, Expression left, Expression right) {
+			super(kind);
 			this.left = left;
 			this.right = right;
 		}
@@ -531,9 +619,9 @@ public class Arduino extends Applet {
 		}
 	}
 
-	public static class Plus extends Operator {
+	public static final class Plus extends Operator {
 		public Plus(Expression left, Expression right) {
-			super(left, right);
+			super(PLUS, left, right);
 		}
 
 		public <T> T accept(Visitor<T> v) {
@@ -545,9 +633,9 @@ public class Arduino extends Applet {
 		return new Plus(left, right);
 	}
 
-	public static class Minus extends Operator {
+	public static final class Minus extends Operator {
 		public Minus(Expression left, Expression right) {
-			super(left, right);
+			super(MINUS, left, right);
 		}
 
 		public <T> T accept(Visitor<T> v) {
@@ -559,9 +647,9 @@ public class Arduino extends Applet {
 		return new Minus(left, right);
 	}
 
-	public static class Times extends Operator {
+	public static final class Times extends Operator {
 		public Times(Expression left, Expression right) {
-			super(left, right);
+			super(TIMES, left, right);
 		}
 
 		public <T> T accept(Visitor<T> v) {
@@ -573,9 +661,9 @@ public class Arduino extends Applet {
 		return new Times(left, right);
 	}
 
-	public static class Divide extends Operator {
+	public static final class Divide extends Operator {
 		public Divide(Expression left, Expression right) {
-			super(left, right);
+			super(DIVIDE, left, right);
 		}
 
 		public <T> T accept(Visitor<T> v) {
@@ -588,266 +676,16 @@ public class Arduino extends Applet {
 	}
 
 	// -----------------------------------------------------------
+	// Shared by every caller; the parser keeps its state per parse
+	private static final Parser PARSER = new Parser();
+
 	public static Program parse(String str) {
-		return new Program(new Arduino().doParse(str));
+		// no applet is needed to parse, so this also works headless
+		return PARSER.parseProgram(str);
 	}
 
 	public Sequence doParse(String source) {
-		int index = 0;
-		String[] statements;
-		String[] tokens;
-		Sequence sequence = new Sequence();
-
-		// Split source codes to different statements end with .
-		String seqDelim = "\\.";
-		statements = source.trim().split(seqDelim);
-
-		String tokenDelim = " ";
-		// Parse each statement to tokens
-		while (index < statements.length) {
-			// System.out.println(statements[index]);
-			tokens = statements[index].trim().split(tokenDelim);
-			// digital Write statement must contain HIGH or LOW
-			if (tokens[0].trim().equalsIgnoreCase("digitalWrite")
-					&& tokens.length == 4) {
-				System.out.println("digitalWrite Called");
-				if (tokens[1].trim().equalsIgnoreCase("LOW")
-						&& tokens[2].trim().equalsIgnoreCase("to")) {
-					sequence.addNode(new digitalWrite(new Id(tokens[3].trim()),
-							new LOW()));
-				} else if (tokens[1].trim().equalsIgnoreCase("HIGH")
-						&& tokens[2].trim().equalsIgnoreCase("to")) {
-					sequence.addNode(new digitalWrite(new Id(tokens[3].trim()),
-							new HIGH()));
-				} else {
-					System.out.println("Error @ " + statements[index]);
-					break;
-				}
-				index++;
-			}
-			// analog Write statement must contain an int
-			else if (tokens[0].trim().equalsIgnoreCase("analogWrite")) {
-				System.out.println("analogWrite Called");
-				if (isDigit(tokens[1].trim())
-						&& tokens[2].trim().equalsIgnoreCase("to")
-						&& tokens.length == 4) {
-					sequence.addNode(new analogWrite(new Id(tokens[3].trim()),
-							new Number(Integer.parseInt(tokens[1].trim()))));
-				} else {
-					System.out.println("Error @ " + statements[index]);
-					break;
-				}
-				index++;
-			}
-			// pinMode statement
-			else if (tokens[0].trim().equalsIgnoreCase("Set")) {
-				System.out.println("Set PinMode Called");
-				if (tokens[1].trim().equalsIgnoreCase("pinMode")
-						&& tokens.length == 6) {
-					sequence.addNode(new pinMode(new Id(tokens[3].trim()),
-							new IOvalue(tokens[5].trim())));
-				} else {
-					System.out.println("Error @ " + statements[index]);
-					break;
-				}
-				index++;
-			}
-			// digital Read statement
-			else if (tokens[0].trim().equalsIgnoreCase("digitalRead")) {
-				System.out.println("digitalRead Called");
-				if (tokens[1].trim().equalsIgnoreCase("from")
-						&& tokens.length == 3) {
-					sequence.addNode(new digitalRead(new Id(tokens[2].trim())));
-				} else {
-					System.out.println("Error @ " + statements[index]);
-					break;
-				}
-				index++;
-			}
-			// analog Read statement
-			else if (tokens[0].trim().equalsIgnoreCase("analogRead")) {
-				System.out.println("analogRead Called");
-				if (tokens[2].trim().equalsIgnoreCase("from")
-						&& tokens.length == 4) {
-					sequence.addNode(new analogRead(new Id(tokens[2].trim())));
-				} else {
-					System.out.println("Error @ " + statements[index]);
-					break;
-				}
-				index++;
-			}
-			// For Loop statement
-			else if (tokens[0].trim().equalsIgnoreCase("For")) {
-				System.out.println("For Loop Called");
-				if (isDigit(tokens[3].trim()) && isDigit(tokens[6].trim())) {
-					String[] newTokens;
-					Sequence seq = new Sequence();
-					index++;
-					newTokens = statements[index].split(tokenDelim);
-
-					while (!newTokens[0].trim().equalsIgnoreCase("End")
-							&& !newTokens[1].trim().equalsIgnoreCase("forloop")) {
-						// System.out.println("Inner block of For Loop");
-						// System.out.println("Statement:"+statements[index]);
-						newTokens = statements[index].trim().split(tokenDelim);
-						seq.addNode(doParse(statements[index]));
-						index++;
-					}
-					sequence.addNode(new forLoop(new Id(tokens[1].trim()),
-							new Number(Integer.parseInt(tokens[3].trim())),
-							new Number(Integer.parseInt(tokens[6].trim())), seq));
-
-				} else {
-					System.out.println("Error @ " + statements[index]);
-					break;
-				}
-
-			}
-			// Set Up statement
-			else if (tokens[0].trim().equalsIgnoreCase("Setup")) {
-				System.out.println("Setup Called");
-				if (statements[index].trim().length() == 5) {
-					String[] newTokens;
-					Sequence seq = new Sequence();
-					index++;
-					newTokens = statements[index].split(tokenDelim);
-
-					while (!newTokens[0].trim().equalsIgnoreCase("End")
-							&& !newTokens[1].trim().equalsIgnoreCase("setup")) {
-						newTokens = statements[index].trim().split(tokenDelim);
-						seq.addNode(doParse(statements[index]));
-						index++;
-					}
-					sequence.addNode(new setUp(seq));
-
-				} else {
-					System.out.println("Error @ " + statements[index]);
-					break;
-				}
-
-			}
-			// Loop statement
-			else if (tokens[0].trim().equalsIgnoreCase("Loop")) {
-				System.out.println("Loop Called");
-				if (statements[index].trim().length() == 4) {
-					String[] newTokens;
-					Sequence seq = new Sequence();
-					// index++;
-					newTokens = statements[index].split(tokenDelim);
-
-					while (!newTokens[0].trim().equalsIgnoreCase("End")
-							&& !newTokens[1].trim().equalsIgnoreCase("loop")) {
-						newTokens = statements[index].trim().split(tokenDelim);
-						seq.addNode(doParse(statements[index]));
-						index++;
-					}
-					sequence.addNode(new Loop(seq));
-
-				} else {
-					System.out.println("Error @ " + statements[index]);
-					break;
-				}
-
-			}
-			
-			//********************************************************************
-			
-			// Break statement
-			else if (tokens[0].trim().equalsIgnoreCase("Break")) {
-				System.out.println("Break Called");
-					if (tokens.length == 1) {
-						sequence.addNode(new Break(new Id(tokens[0].trim())));
-					} else {
-						System.out.println("Error");
-						break;
-					}
-				}
-			
-			// Continue statement
-			else if (tokens[0].trim().equalsIgnoreCase("Continue")) {
-				System.out.println("Continue Called");
-					if (tokens.length == 1) {
-						sequence.addNode(new Break(new Id(tokens[0].trim())));
-					} else {
-						System.out.println("Error");
-						break;
-					}
-				}
-			
-			// Return statement
-						else if (tokens[0].trim().equalsIgnoreCase("Return")) {
-							System.out.println("Return Called");
-							if (tokens.length == 1) {
-								sequence.addNode(new Break(new Id(tokens[0].trim())));
-							} else {
-								System.out.println("Error");
-								break;
-							}
-						}
-			
-			// Goto statement
-					
-						else if (tokens[0].trim().equalsIgnoreCase("Goto")) {
-							System.out.println("Goto Called");
-							if (tokens[1].trim().contains("function")
-									&& tokens.length == 2){
-								sequence.addNode(new Break(new Id(tokens[0].trim())));
-							} else {
-								System.out.println("Invalid Goto Function.");
-								break;
-							}
-						}
-			//********************************************************************
-			// Last Arduino case - Assign - when first token doesn't match any
-			else{
-
-				if (tokens[1].trim().equalsIgnoreCase("is")
-						&& isDigit(tokens[2])) {
-					System.out.println("Assign Called");
-					sequence.addNode(new Assign(new Id(tokens[0].trim()),
-							new Number(Integer.parseInt(tokens[2].trim()))));
-				} else if (tokens[1].trim().equalsIgnoreCase("is")
-						&& tokens[2].trim().equalsIgnoreCase("remainder")) {
-					if (isDigit(tokens[4]) && isDigit(tokens[6])) {
-						System.out.println("Remainder Called");
-						if (tokens.length == 7) {
-							sequence.addNode(new remainder(new Id(tokens[0]
-									.trim()), new Number(Integer
-									.parseInt(tokens[4])), new Number(Integer
-									.parseInt(tokens[6]))));
-						} else {
-							System.out.println("Error");
-							break;
-						}
-					} else if (tokens[0].trim().equalsIgnoreCase("End")) {
-						if (tokens[1].trim().equalsIgnoreCase("setup")) {
-							System.out.println("End Setup Called");
-						} else if (tokens[1].trim().equalsIgnoreCase("loop")) {
-							System.out.println("End Loop Called");
-						} else if (tokens[1].trim().equalsIgnoreCase("if")) {
-							System.out.println("End If Called");
-						} else if (tokens[1].trim().equalsIgnoreCase("ifelse")) {
-							System.out.println("End IfElse Called");
-						} else if (tokens[1].trim().equalsIgnoreCase("for")) {
-							System.out.println("End For Loop Caled");
-						} else if (tokens[1].trim().equalsIgnoreCase("switch")) {
-							System.out.println("End Switch Called");
-						} else if (tokens[1].trim().equalsIgnoreCase("while")) {
-							System.out.println("End While Called");
-						} else if (tokens[1].trim().equalsIgnoreCase("dowhile")) {
-							System.out.println("End DoWhile Called");
-						}
-					} else {
-						System.out.println("Error @ " + statements[index]);
-						break;
-					}
-				}
-			}
-				index++;
-			
-		}
-		return sequence;
-
+		return PARSER.parseSequence(source);
 	}
 
 		//System.out.println("Error @ " + statements[index]);
@@ -864,205 +702,677 @@ public class Arduino extends Applet {
 	}
 
 	// -------------------------------------------------------
+	// Generates sketch code. Each visit compiles its node into a fresh Emitter
+	// and returns the text, so one instance can be shared between threads.
 	public static class ArduinoCompiler implements Visitor<String> {
+		// Run over every node before its code is generated
+		private final Pass[] passes;
+		// whose port registers constant pins of a Program are lowered to
+		private final BoardPins board;
+
+		public ArduinoCompiler() {
+			this((BoardPins) null);
+		}
+
+		public ArduinoCompiler(BoardPins board) {
+			this(board, new ConstantFolder(), new LoopOptimizer(),
+					new PeepholeOptimizer());
+		}
+
+		public ArduinoCompiler(Pass... passes) {
+			this(null, passes);
+		}
+
+		// With a board, a Program is generated by a PortGenerator
+		public ArduinoCompiler(BoardPins board, Pass... passes) {
+			this.board = board;
+			this.passes = passes;
+		}
+
+		public String compile(Node node) {
+			Emitter out = new Emitter();
+			compile(node, out);
+			return out.text();
+		}
+
+		// The code for node, reported to CompileMetrics under the name of its
+		// source
+		public String compile(Node node, String source) {
+			CompileMetrics.EmitEvent event = new CompileMetrics.EmitEvent();
+			event.begin();
+			long begin = System.nanoTime();
+			Emitter out = new Emitter();
+			compile(node, out);
+			CompileMetrics.REGISTRY.emitted(event, source, System.nanoTime()
+					- begin, out.lines(), out.written());
+			return out.text();
+		}
+
+		// Write the code for node to the given emitter
+		public void compile(Node node, Emitter out) {
+			node = optimize(node);
+			if (board != null && node instanceof Program) {
+				node.accept(new PortGenerator(out, board, SymbolTable.build(
+						(Program) node, Diagnostics.NONE)));
+			} else {
+				node.accept(new Generator(out));
+			}
+		}
+
+		// Write the code for node after what generator wrote before, so what
+		// that declared is not declared again
+		void compile(Node node, Generator generator) {
+			optimize(node).accept(generator);
+		}
+
+		// node after every pass
+		Node optimize(Node node) {
+			for (Pass pass : passes) {
+				node = pass.apply(node);
+			}
+			return node;
+		}
 
 		@Override
 		public String visit(Loop loop) {
-			output.setText("Loop(){");
-			loop.body.accept(this);
-			output.setText("}");
-			return null;
+			return compile(loop);
 		}
 
 		@Override
 		public String visit(Branch branch) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(branch);
 		}
 
 		@Override
 		public String visit(Assign assign) {
-			Id name = assign.variable;
-			Number value = assign.value;
-			output.setText("Int " + name.id + " = " + value.n + ";");
-			return null;
+			return compile(assign);
 		}
 
 		@Override
 		public String visit(Id id) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(id);
 		}
 
 		@Override
 		public String visit(Operator op) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(op);
 		}
 
 		@Override
 		public String visit(Plus op) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(op);
 		}
 
 		@Override
 		public String visit(Minus op) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(op);
 		}
 
 		@Override
 		public String visit(Times op) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(op);
 		}
 
 		@Override
 		public String visit(Divide op) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(op);
 		}
 
 		@Override
 		public String visit(Number num) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(num);
 		}
 
 		@Override
 		public String visit(Type type) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(type);
 		}
 
 		@Override
 		public String visit(HIGH high) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(high);
 		}
 
 		@Override
 		public String visit(LOW low) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(low);
 		}
 
 		@Override
 		public String visit(setUp setUp) {
-			output.setText("Setup(){");
-			setUp.body.accept(this);
-			output.setText("}");
-			return null;
+			return compile(setUp);
 		}
 
 		@Override
 		public String visit(pinMode pinMode) {
-			Id name = pinMode.predicate;
-			IOvalue value = pinMode.value;
-			output.setText("pinMode(" + name.id + ", " + value.value + ");");
-			return null;
+			return compile(pinMode);
 		}
 
 		@Override
 		public String visit(digitalWrite digitalWrite) {
-			Id name = digitalWrite.predicate;
-			Expression value = digitalWrite.value;
-			if (value.getClass().equals(new HIGH())) {
-				output.setText("digitalWrite(" + name.id + ", HIGH);");
-			} else {
-				output.setText("digitalWrite(" + name.id + ", LOW);");
-			}
-			return null;
+			return compile(digitalWrite);
 		}
 
 		@Override
 		public String visit(analogWrite analogWrite) {
-			Id name = analogWrite.predicate;
-			Number value = analogWrite.value;
-			output.setText("analogWrite(" + name.id + ", " + value.n + ");");
-			return null;
+			return compile(analogWrite);
 		}
 
 		@Override
 		public String visit(digitalRead digitalRead) {
-			Id name = digitalRead.id;
-			output.setText("digitalRead(" + name.id + ");");
-			return null;
+			return compile(digitalRead);
 		}
 
 		@Override
 		public String visit(analogRead analogRead) {
-			Id name = analogRead.id;
-			output.setText("analogRead(" + name.id + ");");
-			return null;
+			return compile(analogRead);
 		}
 
 		@Override
 		public String visit(Program program) {
-			program.body.accept(this);
-			return null;
+			return compile(program);
 		}
 
 		@Override
 		public String visit(forLoop forLoop) {
-			Id name = forLoop.id;
-			Number start = forLoop.initValue;
-			Number end = forLoop.maxValue;
-			output.setText("for(int " + name.id + " = " + start.n + "; "
-					+ name.id + " <" + end.n + "; " + name.id + "++){");
-			forLoop.body.accept(this);
-			output.setText("}");
-			return null;
+			return compile(forLoop);
 		}
 
 		@Override
 		public String visit(IOvalue iOvalue) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(iOvalue);
 		}
 
 		@Override
 		public String visit(Break break1) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(break1);
 		}
 
 		@Override
 		public String visit(Continue continue1) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(continue1);
 		}
 
 		@Override
 		public String visit(Return return1) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(return1);
 		}
 
 		@Override
 		public String visit(Goto goto1) {
-			// TODO Auto-generated method stub
-			return null;
+			return compile(goto1);
 		}
 
 		@Override
 		public String visit(Arduino.remainder remainder) {
-			// TODO Auto-generated method stub
-			return null;
-		}
+			return compile(remainder);
+		}
+
+		// Walks one tree for one compile, writing into its emitter
+		static class Generator implements Visitor<String> {
+			static final String SETUP = "void setup()";
+			static final String LOOP = "void loop()";
+
+			final Emitter out;
+			// Symbols of the variables declared at file scope, and in the
+			// blocks open; scopes holds each open block's after a -1
+			private final SymbolTable symbols = new SymbolTable();
+			private final BitSet globals = new BitSet();
+			private final BitSet locals = new BitSet();
+			private int[] scopes = new int[16];
+			private int depth;
+			// forLoops the code being written is in
+			private int loops;
+			// What scan has gathered for declareGlobals
+			private Names scanned;
+			private BitSet inPlace;
+			// Told of variables declared inside a block, which only happens
+			// when the globals were never gathered
+			private final Diagnostics diagnostics;
+
+			Generator(Emitter out) {
+				this(out, Diagnostics.NONE);
+			}
+
+			Generator(Emitter out, Diagnostics diagnostics) {
+				this.out = out;
+				this.diagnostics = diagnostics;
+			}
+
+			// The statements of a block, in order
+			void block(Node block) {
+				block.accept(this);
+			}
 
+			// Open a block under header; what is declared in it goes with it
+			void open(String header) {
+				out.open(header);
+				push(-1);
+			}
+
+			void close() {
+				out.close();
+				int symbol = scopes[--depth];
+				while (symbol >= 0) {
+					locals.clear(symbol);
+					symbol = scopes[--depth];
+				}
+			}
+
+			private void push(int symbol) {
+				if (depth == scopes.length) {
+					scopes = Arrays.copyOf(scopes, depth * 2);
+				}
+				scopes[depth++] = symbol;
+			}
+
+			// Take name as declared already, as one declared elsewhere in the
+			// sketch is
+			void declared(String name) {
+				globals.set(symbols.intern(name));
+			}
+
+			// Declare name in the innermost open block, unless it is in scope
+			private boolean local(Id name) {
+				int symbol = symbols.symbol(name);
+				if (globals.get(symbol) || locals.get(symbol)) {
+					return false;
+				}
+				if (depth == 0) {
+					globals.set(symbol);
+				} else {
+					locals.set(symbol);
+					push(symbol);
+				}
+				return true;
+			}
+
+			// Write "int " when an assignment to name is its declaration
+			private void declare(Id name) {
+				if (local(name)) {
+					if (depth > 0) {
+						diagnostics.warning(name.id + " is declared inside a block,"
+								+ " so it does not keep its value outside it", -1, -1);
+					}
+					out.append("int ");
+				}
+			}
+
+			/**
+			 * Declare at the top of the sketch every variable whose first
+			 * assignment cannot declare it: one first assigned inside a block, as
+			 * it must outlive the call of setup() or loop(), and one used before
+			 * or by its first assignment. The simulator keeps all of them as
+			 * globals, and so does the sketch.
+			 */
+			private void globals(Program program) {
+				// by size and get, as a view of an arena holds no children list
+				Sequence statements;
+				if (program.body instanceof Sequence) {
+					statements = (Sequence) program.body;
+				} else {
+					statements = new Sequence();
+					statements.addNode(program.body);
+				}
+				for (int i = 0; i < statements.size(); i++) {
+					scan(statements.get(i), false);
+				}
+				declareGlobals();
+			}
+
+			// Gather the variables of a top level statement for declareGlobals,
+			// or with inside, of a statement in the body of a setUp or Loop
+			void scan(Node statement, boolean inside) {
+				if (scanned == null) {
+					scanned = new Names(symbols);
+					inPlace = new BitSet();
+				}
+				Id target = inside ? null : Names.target(statement);
+				int symbol = target == null ? -1 : symbols.symbol(target);
+				boolean first = symbol >= 0 && !scanned.used.get(symbol)
+						&& !scanned.assigned.get(symbol);
+				scanned.apply(statement);
+				if (first && !scanned.used.get(symbol)) {
+					inPlace.set(symbol);
+				}
+			}
+
+			// Declare what scan gathered that its first assignment cannot
+			void declareGlobals() {
+				if (scanned == null) {
+					return;
+				}
+				BitSet assigned = scanned.assigned;
+				for (int s = assigned.nextSetBit(0); s >= 0; s = assigned
+						.nextSetBit(s + 1)) {
+					if (!inPlace.get(s)) {
+						out.append("int ").append(symbols.name(s)).append(";")
+								.newline();
+						globals.set(s);
+					}
+				}
+				scanned = null;
+				inPlace = null;
+			}
+
+			// Symbols of the variables assigned, and of names read or used as
+			// pins
+			static class Names extends NodeSwitch<Void> {
+				private final SymbolTable symbols;
+				final BitSet assigned = new BitSet();
+				final BitSet used = new BitSet();
+
+				Names(SymbolTable symbols) {
+					this.symbols = symbols;
+				}
+
+				// The variable a statement assigns, or null
+				static Id target(Node statement) {
+					if (statement instanceof Assign) {
+						return ((Assign) statement).variable;
+					}
+					if (statement instanceof remainder
+							&& ((remainder) statement).id instanceof Id) {
+						return (Id) ((remainder) statement).id;
+					}
+					return null;
+				}
+
+				@Override
+				protected Void on(Assign assign) {
+					apply(assign.value);
+					assigned.set(symbols.symbol(assign.variable));
+					return null;
+				}
+
+				@Override
+				protected Void on(remainder remainder) {
+					apply(remainder.firstNumber);
+					apply(remainder.secNumber);
+					Id target = target(remainder);
+					if (target != null) {
+						assigned.set(symbols.symbol(target));
+					} else {
+						apply(remainder.id);
+					}
+					return null;
+				}
+
+				@Override
+				protected Void on(Id id) {
+					used.set(symbols.symbol(id));
+					return null;
+				}
+			}
+
+			@Override
+			public String visit(Loop loop) {
+				open(LOOP);
+				block(loop.body);
+				close();
+				return null;
+			}
+
+			@Override
+			public String visit(Branch branch) {
+				out.append("if (");
+				branch.predicate.accept(this);
+				out.append(")");
+				open("");
+				block(branch.ifBranch);
+				close();
+				if (branch.elseBranch != null) {
+					open("else");
+					block(branch.elseBranch);
+					close();
+				}
+				return null;
+			}
+
+			@Override
+			public String visit(Assign assign) {
+				Id name = assign.variable;
+				declare(name);
+				out.append(name.id).append(" = ");
+				assign.value.accept(this);
+				out.append(";").newline();
+				return null;
+			}
+
+			@Override
+			public String visit(Id id) {
+				out.append(id.id);
+				return null;
+			}
+
+			@Override
+			public String visit(Operator op) {
+				// every Operator is a Plus, Minus, Times or Divide
+				throw new IllegalStateException("operator of unknown kind "
+						+ ((NodeBase) op).kind);
+			}
+
+			@Override
+			public String visit(Plus op) {
+				binary(op, " + ", 1);
+				return null;
+			}
+
+			@Override
+			public String visit(Minus op) {
+				binary(op, " - ", 1);
+				return null;
+			}
+
+			@Override
+			public String visit(Times op) {
+				binary(op, " * ", 2);
+				return null;
+			}
+
+			@Override
+			public String visit(Divide op) {
+				binary(op, " / ", 2);
+				return null;
+			}
+
+			@Override
+			public String visit(Number num) {
+				out.append(num.n);
+				return null;
+			}
+
+			@Override
+			public String visit(Type type) {
+				out.append(type.type);
+				return null;
+			}
+
+			@Override
+			public String visit(HIGH high) {
+				out.append("HIGH");
+				return null;
+			}
+
+			@Override
+			public String visit(LOW low) {
+				out.append("LOW");
+				return null;
+			}
+
+			@Override
+			public String visit(setUp setUp) {
+				open(SETUP);
+				block(setUp.body);
+				close();
+				return null;
+			}
+
+			@Override
+			public String visit(pinMode pinMode) {
+				Id name = pinMode.predicate;
+				IOvalue value = pinMode.value;
+				out.append("pinMode(").append(name.id).append(", ")
+						.append(value.value).append(");").newline();
+				return null;
+			}
+
+			@Override
+			public String visit(digitalWrite digitalWrite) {
+				Id name = digitalWrite.predicate;
+				Expression value = digitalWrite.value;
+				out.append("digitalWrite(").append(name.id)
+						.append(value instanceof HIGH ? ", HIGH);" : ", LOW);")
+						.newline();
+				return null;
+			}
+
+			@Override
+			public String visit(analogWrite analogWrite) {
+				Id name = analogWrite.predicate;
+				Number value = analogWrite.value;
+				out.append("analogWrite(").append(name.id).append(", ")
+						.append(value.n).append(");").newline();
+				return null;
+			}
+
+			@Override
+			public String visit(digitalRead digitalRead) {
+				Id name = digitalRead.id;
+				out.append("digitalRead(").append(name.id).append(");").newline();
+				return null;
+			}
+
+			@Override
+			public String visit(analogRead analogRead) {
+				Id name = analogRead.id;
+				out.append("analogRead(").append(name.id).append(");").newline();
+				return null;
+			}
+
+			@Override
+			public String visit(Program program) {
+				// the whole sketch is built up in the emitter and returned at once
+				out.reset();
+				globals(program);
+				block(program.body);
+				return out.text();
+			}
+
+			@Override
+			public String visit(forLoop forLoop) {
+				Id name = forLoop.id;
+				Number start = forLoop.initValue;
+				Number end = forLoop.maxValue;
+				out.append("for (int ").append(name.id).append(" = ").append(start.n)
+						.append("; ").append(name.id).append(" < ").append(end.n)
+						.append("; ").append(name.id).append("++)");
+				open("");
+				local(name);
+				loops++;
+				block(forLoop.body);
+				loops--;
+				close();
+				return null;
+			}
+
+			@Override
+			public String visit(IOvalue iOvalue) {
+				out.append(iOvalue.value);
+				return null;
+			}
+
+			// Break and Continue only mean something in a forLoop; elsewhere
+			// the simulator ignores them, and so does the sketch
+			@Override
+			public String visit(Break break1) {
+				jump("break");
+				return null;
+			}
+
+			@Override
+			public String visit(Continue continue1) {
+				jump("continue");
+				return null;
+			}
+
+			private void jump(String statement) {
+				if (loops > 0) {
+					out.append(statement + ";").newline();
+				} else {
+					out.append("// " + statement + " outside a for loop does nothing")
+							.newline();
+				}
+			}
+
+			@Override
+			public String visit(Return return1) {
+				out.append("return;").newline();
+				return null;
+			}
+
+			// There are no functions to go to, so the label is left for the
+			// sketch's compiler to report
+			@Override
+			public String visit(Goto goto1) {
+				out.append("goto ").append(goto1.variable.id).append(";").newline();
+				return null;
+			}
+
+			@Override
+			public String visit(Arduino.remainder remainder) {
+				Id target = Names.target(remainder);
+				if (target != null) {
+					declare(target);
+				} else {
+					out.append("int ");
+				}
+				remainder.id.accept(this);
+				out.append(" = ");
+				operand(remainder.firstNumber, 2, false);
+				out.append(" % ");
+				operand(remainder.secNumber, 2, true);
+				out.append(";").newline();
+				return null;
+			}
+
+			private void binary(Operator op, String symbol, int precedence) {
+				operand(op.left, precedence, false);
+				out.append(symbol);
+				operand(op.right, precedence, true);
+			}
+
+			// Parenthesize operands that bind looser than their operator
+			private void operand(Expression e, int parent, boolean right) {
+				int precedence = e instanceof Plus || e instanceof Minus ? 1
+						: e instanceof Times || e instanceof Divide ? 2 : 3;
+				boolean parens = precedence < parent
+						|| (right && precedence == parent)
+						|| (right && e instanceof Number && ((Number) e).n < 0);
+				if (parens) {
+					out.append("(");
+				}
+				e.accept(this);
+				if (parens) {
+					out.append(")");
+				}
+			}
+		}
 	}
 
 	// -------------------------------------------------------------------------------
-		private static TextField input;
-		private static TextField output;
+		private TextField input;
+		private TextArea output;
+		// Recompiles only reparse the statements that changed
+		private final CompileCache cache = new CompileCache(4096);
+		// Follows the input as it is typed, reparsing only what each edit touches
+		private final IncrementalCompiler editor = new IncrementalCompiler("");
 	  
 		public void init () {
 	   
 	     // Construct the TextFields
 	     this.input = new TextField(40);
-	     this.output = new TextField(40);
+	     this.output = new TextArea(10, 40);
 	     this.output.setEditable(false);
 	     Button b = new Button("Compile");
 
@@ -1077,6 +1387,7 @@ public class Arduino extends Applet {
 	     ArduinoAction ca = new ArduinoAction();
 	     b.addActionListener(ca);
 	     this.input.addActionListener(ca);
+	     this.input.addTextListener(new ArduinoEdit());
 
 	     // notice that ActionEvents produced by output are ignored.
 	   
@@ -1091,10 +1402,21 @@ public class Arduino extends Applet {
 			
 
 		    String s = input.getText();
-		    Node newNode = Arduino.parse(s);
-		    newNode.accept(new Arduino.ArduinoCompiler());
-		   // output.setText(s);
+		    CompileCache.Result result = cache.compile(s);
+		    // one UI update for the whole generated sketch
+		    output.setText(result.failed() ? result.errorMessage : result.code);
+		    showStatus(cache.toString());
+
+		  }
+
+		}
+
+	class ArduinoEdit implements TextListener {
 
+		  public void textValueChanged(TextEvent te) {
+		    editor.setText(input.getText());
+		    String error = editor.errorMessage();
+		    output.setText(error != null ? error : editor.code());
 		  }
 
 		}
@@ -1119,7 +1441,7 @@ public class Arduino extends Applet {
 		System.out.println("Source: " + source);
 		System.out.println("#########");
 		System.out.println("Arduino Compiled: ");
-		newNode.accept(new Arduino.ArduinoCompiler());
+		System.out.println(newNode.accept(new Arduino.ArduinoCompiler()));
 	}*/
 }
 